@@ -1,20 +1,77 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
-//bus route class
+//bus route class, immutable so readers can share routes with the writer; a change makes a new route with the same id
 class BusRoute implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private String routeNumber;
-    private String busType;
-    private String destination;
-    private LocalTime departureTime;
-    private LocalTime arrivalTime;
+    //stable identity used by the journal, 0 for routes from old snapshots until they get one
+    private final long id;
+    private final String routeNumber;
+    private final String busType;
+    private final String destination;
+    private final LocalTime departureTime;
+    private final LocalTime arrivalTime;
 
     public BusRoute(String routeNumber, String busType, String destination, LocalTime departureTime, LocalTime arrivalTime) {
+        this(0, routeNumber, busType, destination, departureTime, arrivalTime);
+    }
+
+    public BusRoute(long id, String routeNumber, String busType, String destination,
+                    LocalTime departureTime, LocalTime arrivalTime) {
+        this.id = id;
         this.routeNumber = routeNumber;
         this.busType = busType;
         this.destination = destination;
@@ -22,143 +79,6023 @@ class BusRoute implements Serializable {
         this.arrivalTime = arrivalTime;
     }
 
+    public BusRoute withId(long id) {
+        return new BusRoute(id, routeNumber, busType, destination, departureTime, arrivalTime);
+    }
+
+    //null arguments keep the current value
+    public BusRoute with(String busType, String destination, LocalTime departureTime, LocalTime arrivalTime) {
+        return new BusRoute(id, routeNumber,
+                busType != null ? busType : this.busType,
+                destination != null ? destination : this.destination,
+                departureTime != null ? departureTime : this.departureTime,
+                arrivalTime != null ? arrivalTime : this.arrivalTime);
+    }
+
+    public long getId() {
+        return id;
+    }
+
     public String getRouteNumber() {
         return routeNumber;
     }
-    public void setRouteNumber(String routeNumber) {
-        this.routeNumber = routeNumber;
+
+    public String getBusType() {
+        return busType;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public LocalTime getDepartureTime() {
+        return departureTime;
+    }
+
+    public LocalTime getArrivalTime() {
+        return arrivalTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(112);
+        RouteRenderer.appendRow(sb, this);
+        return sb.toString();
+    }
+
+    //times are entered as HH:mm, so minutes of the day are enough to store them
+    static int toMinutes(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    //LocalTime is immutable, so all routes share one instance per minute
+    private static final LocalTime[] TIMES = new LocalTime[24 * 60];
+    static {
+        for (int i = 0; i < TIMES.length; i++) {
+            TIMES[i] = LocalTime.of(i / 60, i % 60);
+        }
+    }
+
+    static LocalTime fromMinutes(int minutes) {
+        return TIMES[minutes];
+    }
+}
+
+//account class
+class UserAccount implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String username;
+    //plain text password of accounts saved by older versions, null once migrated
+    private String password;
+    private boolean isAdmin;
+    private byte[] salt;
+    private byte[] passwordHash;
+    private int iterations;
+
+    public UserAccount(String username, byte[] salt, byte[] passwordHash, int iterations, boolean isAdmin) {
+        this.username = username;
+        this.salt = salt;
+        this.passwordHash = passwordHash;
+        this.iterations = iterations;
+        this.isAdmin = isAdmin;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+    public boolean isAdmin() {
+        return isAdmin;
+    }
+
+    byte[] getSalt() {
+        return salt;
+    }
+    byte[] getPasswordHash() {
+        return passwordHash;
+    }
+    int getIterations() {
+        return iterations;
+    }
+
+    String getLegacyPassword() {
+        return passwordHash == null ? password : null;
+    }
+
+    public UserAccount withAdmin(boolean admin) {
+        return new UserAccount(username, salt, passwordHash, iterations, admin);
+    }
+}
+
+//salted PBKDF2 password hashes, the iteration count sets how long one check takes
+class PasswordHasher {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int MIN_ITERATIONS = 1000;
+    private static final int PROBE_ITERATIONS = 10_000;
+
+    private final SecureRandom random = new SecureRandom();
+    private final int iterations;
+    //checked against unknown usernames, so they take as long as a wrong password
+    private final UserAccount dummy;
+
+    public PasswordHasher(int iterations) {
+        this.iterations = Math.max(MIN_ITERATIONS, iterations);
+        this.dummy = create("", "", false);
+    }
+
+    //picks the iteration count whose check takes about budgetMillis on this machine
+    public static PasswordHasher calibrate(long budgetMillis) {
+        byte[] salt = new byte[SALT_BYTES];
+        long best = Long.MAX_VALUE;
+        //the first runs include JIT warm-up, keep the fastest
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            hash("calibration", salt, PROBE_ITERATIONS);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        long perMillion = Math.max(1, best * 1_000_000L / PROBE_ITERATIONS);
+        long target = budgetMillis * 1_000_000L * 1_000_000L / perMillion;
+        return new PasswordHasher((int) Math.min(Integer.MAX_VALUE, target));
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public UserAccount create(String username, String password, boolean isAdmin) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return new UserAccount(username, salt, hash(password, salt, iterations), iterations, isAdmin);
+    }
+
+    //account is null for an unknown username
+    public boolean verify(UserAccount account, String password) {
+        UserAccount target = account != null ? account : dummy;
+        byte[] actual = hash(password, target.getSalt(), target.getIterations());
+        return MessageDigest.isEqual(actual, target.getPasswordHash()) && account != null;
+    }
+
+    //hashes written with another iteration count are redone on the next successful login
+    public boolean needsRehash(UserAccount account) {
+        return account.getIterations() != iterations;
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Password hashing is not available: " + e.getMessage(), e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
+
+//accounts keyed by username, snapshot file plus a journal of the account changes made since it was written
+class AccountStore implements Closeable {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final ConcurrentHashMap<String, UserAccount> byName = new ConcurrentHashMap<>();
+    private final File snapshotFile;
+    private final AppendLog log;
+    private final long compactThreshold;
+    private final PasswordHasher hasher;
+    private final Metrics metrics;
+    //a lock rather than synchronized, so a session thread blocked on disk does not pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public AccountStore(File snapshotFile, File logFile, long compactThreshold, long groupCommitMillis,
+                        PasswordHasher hasher, Metrics metrics) {
+        this.snapshotFile = snapshotFile;
+        this.log = new AppendLog(logFile, groupCommitMillis);
+        this.compactThreshold = compactThreshold;
+        this.hasher = hasher;
+        this.metrics = metrics;
+    }
+
+    public PasswordHasher getHasher() {
+        return hasher;
+    }
+
+    //reads the snapshot, hashes plain text passwords left by older versions and replays the journal
+    @SuppressWarnings("unchecked")
+    public void load() throws IOException, ClassNotFoundException {
+        boolean migrated = false;
+        if (snapshotFile.exists()) {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+                for (UserAccount u : (List<UserAccount>) ois.readObject()) {
+                    String legacy = u.getLegacyPassword();
+                    if (legacy != null) {
+                        u = hasher.create(u.getUsername(), legacy, u.isAdmin());
+                        migrated = true;
+                    }
+                    byName.put(u.getUsername(), u);
+                }
+            }
+        }
+        log.open(this::apply);
+        if (migrated) {
+            writeSnapshot();
+            System.out.println("Account passwords converted to salted hashes.");
+        }
+    }
+
+    //opens the journal without replaying, used when the snapshot could not be read
+    public void openLog() throws IOException {
+        log.open(payload -> { });
+    }
+
+    public boolean isEmpty() {
+        return byName.isEmpty();
+    }
+
+    public UserAccount get(String username) {
+        return byName.get(username);
+    }
+
+    //the account if the password matches, null otherwise
+    public UserAccount authenticate(String username, String password) {
+        long start = System.nanoTime();
+        UserAccount account = byName.get(username);
+        boolean ok = hasher.verify(account, password);
+        metrics.record(Operation.LOGIN, start);
+        return ok ? account : null;
+    }
+
+    //accounts ordered by username
+    public List<UserAccount> list() {
+        List<UserAccount> result = new ArrayList<>(byName.values());
+        result.sort(Comparator.comparing(UserAccount::getUsername));
+        return result;
+    }
+
+    //false if the username is taken
+    public boolean add(UserAccount account) throws IOException {
+        byte[] payload = putRecord(account);
+        writeLock.lock();
+        try {
+            if (byName.containsKey(account.getUsername())) return false;
+            log.append(payload);
+            byName.put(account.getUsername(), account);
+            compactIfNeeded();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void put(UserAccount account) throws IOException {
+        byte[] payload = putRecord(account);
+        writeLock.lock();
+        try {
+            log.append(payload);
+            byName.put(account.getUsername(), account);
+            compactIfNeeded();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean remove(String username) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(DELETE);
+        out.writeUTF(username);
+        writeLock.lock();
+        try {
+            if (!byName.containsKey(username)) return false;
+            log.append(buf.toByteArray());
+            byName.remove(username);
+            compactIfNeeded();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //writes every account to the snapshot file and empties the journal
+    public void writeSnapshot() throws IOException {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            File tmp = new File(snapshotFile.getPath() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+                oos.writeObject(new ArrayList<>(byName.values()));
+                oos.flush();
+                fos.getFD().sync();
+            }
+            try {
+                Files.move(tmp.toPath(), snapshotFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            //replaying records the snapshot already holds is harmless, so a crash here loses nothing
+            log.truncate();
+        } finally {
+            writeLock.unlock();
+            metrics.record(Operation.SAVE_USERS, start);
+        }
+    }
+
+    //waits until every change made so far is on disk
+    public void flush() throws IOException {
+        log.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            log.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static byte[] putRecord(UserAccount account) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(PUT);
+        out.writeUTF(account.getUsername());
+        out.writeBoolean(account.isAdmin());
+        out.writeInt(account.getIterations());
+        out.writeByte(account.getSalt().length);
+        out.write(account.getSalt());
+        out.writeByte(account.getPasswordHash().length);
+        out.write(account.getPasswordHash());
+        return buf.toByteArray();
+    }
+
+    //called with the write lock held, after the map already holds the change just journaled
+    private void compactIfNeeded() throws IOException {
+        if (log.size() >= compactThreshold) {
+            writeSnapshot();
+        }
+    }
+
+    private void apply(byte[] payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte op = in.readByte();
+            String username = in.readUTF();
+            if (op == PUT) {
+                boolean admin = in.readBoolean();
+                int iterations = in.readInt();
+                byte[] salt = new byte[in.readUnsignedByte()];
+                in.readFully(salt);
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                byName.put(username, new UserAccount(username, salt, hash, iterations, admin));
+            } else if (op == DELETE) {
+                byName.remove(username);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+//operations with their own latency histogram
+enum Operation {
+    LOGIN("login"),
+    SEARCH_NUMBER("search by number"),
+    SEARCH_TYPE("search by bus type"),
+    SEARCH_DESTINATION("search by destination"),
+    MATCH_TYPE("match bus type"),
+    MATCH_DESTINATION("match destination"),
+    SORT_NUMBER("sort by number"),
+    SORT_TYPE("sort by bus type"),
+    SORT_DESTINATION("sort by destination"),
+    ADVANCED_SEARCH("advanced search"),
+    ARRIVAL_FILTER("arrival time filter"),
+    NEXT_DEPARTURES("next departures"),
+    EXPORT("export routes"),
+    BULK_UPDATE("bulk update"),
+    ADD_ROUTE("add route"),
+    EDIT_ROUTE("edit route"),
+    DELETE_ROUTE("delete route"),
+    LOAD_DATA("load data"),
+    SAVE_ROUTES("save routes"),
+    SAVE_USERS("save users");
+
+    private final String label;
+
+    Operation(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
+
+//log-linear latency histogram in the style of HdrHistogram: exact below 32 ns, then 32 buckets per power of two
+//(about 3% error); recording is a few atomic increments and never allocates
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long meanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n;
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    //upper bound of the bucket holding the given fraction of recorded values
+    public long percentileNanos(double p) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBound(i), maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
+
+//a histogram per operation, shown in the admin statistics and dumped to a file now and then
+class Metrics implements Closeable {
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+    //query cache lookups per operation
+    private final LongAdder[] cacheHits = new LongAdder[Operation.values().length];
+    private final LongAdder[] cacheMisses = new LongAdder[Operation.values().length];
+    private final long startNanos = System.nanoTime();
+    private ScheduledExecutorService dumper;
+
+    public Metrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            cacheHits[i] = new LongAdder();
+            cacheMisses[i] = new LongAdder();
+        }
+    }
+
+    //startNanos is a System.nanoTime() taken when the operation began
+    public void record(Operation op, long startNanos) {
+        histograms[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void recordCache(Operation op, boolean hit) {
+        (hit ? cacheHits : cacheMisses)[op.ordinal()].increment();
+    }
+
+    public LatencyHistogram get(Operation op) {
+        return histograms[op.ordinal()];
+    }
+
+    public void report(PrintWriter out) {
+        double uptime = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        out.printf("Uptime %.0f s%n", uptime);
+        out.printf("%-22s %10s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "mean us", "p50 us", "p90 us", "p99 us", "max us");
+        for (Operation op : Operation.values()) {
+            LatencyHistogram h = get(op);
+            long n = h.count();
+            if (n == 0) continue;
+            out.printf("%-22s %10d %10.2f %10.1f %10.1f %10.1f %10.1f %10.1f%n", op.getLabel(), n, n / uptime,
+                    h.meanNanos() / 1e3, h.percentileNanos(0.50) / 1e3, h.percentileNanos(0.90) / 1e3,
+                    h.percentileNanos(0.99) / 1e3, h.maxNanos() / 1e3);
+        }
+        boolean header = false;
+        for (Operation op : Operation.values()) {
+            long hits = cacheHits[op.ordinal()].sum();
+            long misses = cacheMisses[op.ordinal()].sum();
+            if (hits + misses == 0) continue;
+            if (!header) {
+                out.printf("%n%-22s %10s %10s %10s%n", "query cache", "hits", "misses", "hit ratio");
+                header = true;
+            }
+            out.printf("%-22s %10d %10d %9.1f%%%n", op.getLabel(), hits, misses, 100.0 * hits / (hits + misses));
+        }
+        out.flush();
+    }
+
+    //writes the report to file every interval, replacing the previous one
+    public void dumpPeriodically(File file, long intervalSeconds) {
+        if (intervalSeconds <= 0) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void dump(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            report(out);
+        } catch (IOException e) {
+            System.out.println("Error with saving statistics: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("Error with saving statistics: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+    }
+}
+
+//formats route rows into one reused builder and writes them through a single buffered writer
+class RouteRenderer {
+    static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+
+    private final PrintWriter out;
+    private final StringBuilder line = new StringBuilder(128);
+    private char[] chars = new char[128];
+
+    public RouteRenderer(OutputStream stream) {
+        this(new OutputStreamWriter(stream));
+    }
+
+    public RouteRenderer(OutputStream stream, Charset charset) {
+        this(new OutputStreamWriter(stream, charset));
+    }
+
+    private RouteRenderer(Writer writer) {
+        this.out = new PrintWriter(new BufferedWriter(writer, 1 << 16), false);
+    }
+
+    //the writer rows go through, for messages that must stay in order with them
+    public PrintWriter writer() {
+        return out;
+    }
+
+    //same text as BusRoute.toString(), without a formatter or String.format
+    static void appendRow(StringBuilder sb, BusRoute route) {
+        sb.append("Route №").append(route.getRouteNumber())
+                .append(" | Type: ").append(route.getBusType())
+                .append(" | Destination point: ").append(route.getDestination())
+                .append(" | Departure time: ");
+        appendTime(sb, route.getDepartureTime());
+        sb.append(" | Arrival time: ");
+        appendTime(sb, route.getArrivalTime());
+    }
+
+    static void appendTime(StringBuilder sb, LocalTime time) {
+        appendTwoDigits(sb, time.getHour());
+        sb.append(':');
+        appendTwoDigits(sb, time.getMinute());
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    //writes rows from..to-1 and flushes once at the end
+    public void print(List<BusRoute> rows, int from, int to) {
+        for (int i = from; i < to; i++) {
+            line.setLength(0);
+            appendRow(line, rows.get(i));
+            line.append(System.lineSeparator());
+            if (chars.length < line.length()) {
+                chars = new char[line.length() * 2];
+            }
+            line.getChars(0, line.length(), chars, 0);
+            out.write(chars, 0, line.length());
+        }
+        out.flush();
+    }
+}
+
+//orders route numbers with digit runs compared by value, so "2" comes before "10"
+class RouteNumberOrder implements Comparator<String> {
+    static final RouteNumberOrder INSTANCE = new RouteNumberOrder();
+
+    @Override
+    public int compare(String a, String b) {
+        return compare(a.toCharArray(), 0, a.length(), b.toCharArray(), 0, b.length());
+    }
+
+    //compares a[aFrom..aTo) with b[bFrom..bTo), used on the character column of the route table
+    static int compare(char[] a, int aFrom, int aTo, char[] b, int bFrom, int bTo) {
+        int i = aFrom;
+        int j = bFrom;
+        while (i < aTo && j < bTo) {
+            char ca = a[i];
+            char cb = b[j];
+            if (isDigit(ca) && isDigit(cb)) {
+                int startA = i;
+                int startB = j;
+                while (i < aTo && isDigit(a[i])) i++;
+                while (j < bTo && isDigit(b[j])) j++;
+                //without leading zeros the longer run is the bigger number
+                int za = startA;
+                while (za < i - 1 && a[za] == '0') za++;
+                int zb = startB;
+                while (zb < j - 1 && b[zb] == '0') zb++;
+                if (i - za != j - zb) return (i - za) - (j - zb);
+                for (int k = 0; k < i - za; k++) {
+                    if (a[za + k] != b[zb + k]) return a[za + k] - b[zb + k];
+                }
+                //same value, "7" before "07"
+                if (i - startA != j - startB) return (i - startA) - (j - startB);
+            } else {
+                if (ca != cb) return ca - cb;
+                i++;
+                j++;
+            }
+        }
+        return (aTo - i) - (bTo - j);
+    }
+
+    //the same order on characters in a direct buffer, used on an off-heap route table;
+    //reads with absolute gets only, so the buffers can be shared by readers
+    static int compare(CharBuffer a, int aFrom, int aTo, CharBuffer b, int bFrom, int bTo) {
+        int i = aFrom;
+        int j = bFrom;
+        while (i < aTo && j < bTo) {
+            char ca = a.get(i);
+            char cb = b.get(j);
+            if (isDigit(ca) && isDigit(cb)) {
+                int startA = i;
+                int startB = j;
+                while (i < aTo && isDigit(a.get(i))) i++;
+                while (j < bTo && isDigit(b.get(j))) j++;
+                //without leading zeros the longer run is the bigger number
+                int za = startA;
+                while (za < i - 1 && a.get(za) == '0') za++;
+                int zb = startB;
+                while (zb < j - 1 && b.get(zb) == '0') zb++;
+                if (i - za != j - zb) return (i - za) - (j - zb);
+                for (int k = 0; k < i - za; k++) {
+                    if (a.get(za + k) != b.get(zb + k)) return a.get(za + k) - b.get(zb + k);
+                }
+                //same value, "7" before "07"
+                if (i - startA != j - startB) return (i - startA) - (j - startB);
+            } else {
+                if (ca != cb) return ca - cb;
+                i++;
+                j++;
+            }
+        }
+        return (aTo - i) - (bTo - j);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
+
+//strings by int code, each distinct value stored once; codes never change, so rows can keep them
+abstract class StringDictionary {
+    public abstract int encode(String value);
+
+    public abstract String decode(int code);
+
+    //lower-case search key of the value
+    public abstract String key(int code);
+
+    //same as key(code).equals(key), without making the key String where the storage can avoid it
+    public boolean keyEquals(int code, String key) {
+        return key(code).equals(key);
+    }
+
+    public boolean valueEquals(int code, String value) {
+        return decode(code).equals(value);
+    }
+
+    //orders codes the way String.compareTo orders their values
+    public int compare(int a, int b) {
+        return a == b ? 0 : decode(a).compareTo(decode(b));
+    }
+
+    //characters chars[start..start+length) as a String
+    static String read(CharBuffer chars, int start, int length) {
+        if (chars.hasArray()) return new String(chars.array(), chars.arrayOffset() + start, length);
+        char[] copy = new char[length];
+        chars.get(start, copy, 0, length);
+        return new String(copy);
+    }
+
+    //char buffer outside the Java heap, in native byte order so reads need no swapping
+    static CharBuffer direct(int chars) {
+        return ByteBuffer.allocateDirect(Math.multiplyExact(chars, 2)).order(ByteOrder.nativeOrder()).asCharBuffer();
+    }
+}
+
+//dictionary of String objects on the heap
+class HeapStringDictionary extends StringDictionary {
+    //writer side only
+    private final Map<String, Integer> codes = new HashMap<>();
+    //replaced, never changed in place once a reader can see a code, so readers need no lock
+    private volatile String[] values = new String[16];
+    private volatile String[] keys = new String[16];
+    private int size;
+
+    @Override
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) return code;
+        if (size == values.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        keys[size] = RouteIndex.key(value);
+        codes.put(value, size);
+        return size++;
+    }
+
+    @Override
+    public String decode(int code) {
+        return values[code];
+    }
+
+    @Override
+    public String key(int code) {
+        return keys[code];
+    }
+}
+
+//dictionary whose characters live in a direct buffer, with only int arrays on the heap, so a large
+//dictionary adds nothing for the garbage collector to trace; decode and key make a String on each call
+class OffHeapStringDictionary extends StringDictionary {
+    //value of code i is chars[keyEnds[i - 1]..valueEnds[i]), its key follows up to keyEnds[i];
+    //like the heap dictionary, storage is replaced rather than moved once readers can see a code
+    private volatile CharBuffer chars = direct(256);
+    private volatile int[] valueEnds = new int[16];
+    private volatile int[] keyEnds = new int[16];
+    //writer side only: open addressing over code + 1, 0 marks a free slot
+    private int[] slots = new int[32];
+    private int[] hashes = new int[16];
+    private int size;
+    private int used;
+
+    @Override
+    public int encode(String value) {
+        int hash = value.hashCode();
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            int code = slots[slot] - 1;
+            if (hashes[code] == hash && valueEquals(code, value)) return code;
+            slot = (slot + 1) & mask;
+        }
+        String key = RouteIndex.key(value);
+        CharBuffer c = chars;
+        if (used + value.length() + key.length() > c.capacity()) {
+            CharBuffer grown = direct(Math.max(c.capacity() * 2, used + value.length() + key.length()));
+            grown.put(0, c, 0, used);
+            c = grown;
+        }
+        if (size == valueEnds.length) {
+            valueEnds = Arrays.copyOf(valueEnds, size * 2);
+            keyEnds = Arrays.copyOf(keyEnds, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            c.put(used++, value.charAt(i));
+        }
+        valueEnds[size] = used;
+        for (int i = 0; i < key.length(); i++) {
+            c.put(used++, key.charAt(i));
+        }
+        keyEnds[size] = used;
+        hashes[size] = hash;
+        chars = c;
+        slots[slot] = size + 1;
+        if (++size * 2 > slots.length) rehash();
+        return size - 1;
+    }
+
+    private void rehash() {
+        int[] grown = new int[slots.length * 2];
+        int mask = grown.length - 1;
+        for (int code = 0; code < size; code++) {
+            int slot = hashes[code] & mask;
+            while (grown[slot] != 0) slot = (slot + 1) & mask;
+            grown[slot] = code + 1;
+        }
+        slots = grown;
+    }
+
+    private int valueStart(int code) {
+        return code == 0 ? 0 : keyEnds[code - 1];
+    }
+
+    @Override
+    public String decode(int code) {
+        int start = valueStart(code);
+        return read(chars, start, valueEnds[code] - start);
+    }
+
+    @Override
+    public String key(int code) {
+        int start = valueEnds[code];
+        return read(chars, start, keyEnds[code] - start);
+    }
+
+    @Override
+    public boolean keyEquals(int code, String key) {
+        return regionEquals(valueEnds[code], keyEnds[code], key);
+    }
+
+    @Override
+    public boolean valueEquals(int code, String value) {
+        return regionEquals(valueStart(code), valueEnds[code], value);
+    }
+
+    private boolean regionEquals(int from, int to, String value) {
+        if (to - from != value.length()) return false;
+        CharBuffer c = chars;
+        for (int i = 0; i < value.length(); i++) {
+            if (c.get(from + i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int compare(int a, int b) {
+        if (a == b) return 0;
+        CharBuffer c = chars;
+        int i = valueStart(a);
+        int j = valueStart(b);
+        int endA = valueEnds[a];
+        int endB = valueEnds[b];
+        while (i < endA && j < endB) {
+            char ca = c.get(i++);
+            char cb = c.get(j++);
+            if (ca != cb) return ca - cb;
+        }
+        return (endA - i) - (endB - j);
+    }
+}
+
+//route id to row, open addressing with linear probing so ids of any size cost one slot each
+class IdRowMap {
+    private long[] ids = new long[16];
+    //row + 1, 0 marks a free slot
+    private int[] rows = new int[16];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    //row of the id, -1 if there is none
+    public int get(long id) {
+        int mask = rows.length - 1;
+        for (int i = slot(id, mask); rows[i] != 0; i = (i + 1) & mask) {
+            if (ids[i] == id) return rows[i] - 1;
+        }
+        return -1;
+    }
+
+    //returns false if the id already had a row, which is replaced
+    public boolean put(long id, int row) {
+        int mask = rows.length - 1;
+        int i = slot(id, mask);
+        for (; rows[i] != 0; i = (i + 1) & mask) {
+            if (ids[i] == id) {
+                rows[i] = row + 1;
+                return false;
+            }
+        }
+        ids[i] = id;
+        rows[i] = row + 1;
+        if (++size * 2 > rows.length) grow();
+        return true;
+    }
+
+    //returns false if the id had no row
+    public boolean remove(long id) {
+        int mask = rows.length - 1;
+        int i = slot(id, mask);
+        while (ids[i] != id) {
+            if (rows[i] == 0) return false;
+            i = (i + 1) & mask;
+        }
+        if (rows[i] == 0) return false;
+        //shift later entries of the probe run back so lookups never stop at the hole
+        for (int j = (i + 1) & mask; rows[j] != 0; j = (j + 1) & mask) {
+            int home = slot(ids[j], mask);
+            boolean reachable = i <= j ? home <= i || home > j : home <= i && home > j;
+            if (reachable) {
+                ids[i] = ids[j];
+                rows[i] = rows[j];
+                i = j;
+            }
+        }
+        rows[i] = 0;
+        size--;
+        return true;
+    }
+
+    private void grow() {
+        long[] oldIds = ids;
+        int[] oldRows = rows;
+        ids = new long[oldIds.length * 2];
+        rows = new int[oldRows.length * 2];
+        int mask = rows.length - 1;
+        for (int k = 0; k < oldRows.length; k++) {
+            if (oldRows[k] == 0) continue;
+            int i = slot(oldIds[k], mask);
+            while (rows[i] != 0) i = (i + 1) & mask;
+            ids[i] = oldIds[k];
+            rows[i] = oldRows[k];
+        }
+    }
+
+    private static int slot(long id, int mask) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
+
+//routes stored column by column with dictionary-coded strings; rows are only appended and never changed,
+//so readers of old snapshots are never disturbed: an edit appends a new row for the same id
+class RouteTable {
+    //one generation of column storage; a full generation is copied into a new one, rows already written stay as they are
+    private abstract static class Columns {
+        //route number characters, read with absolute gets only so that readers can share the buffer
+        final CharBuffer numberChars;
+
+        Columns(CharBuffer numberChars) {
+            this.numberChars = numberChars;
+        }
+
+        //rows are int indexes and heap arrays stop a little short of Integer.MAX_VALUE
+        static final int MAX_ROWS = Integer.MAX_VALUE - 8;
+
+        abstract int capacity();
+
+        //characters the number column can hold
+        int maxChars() {
+            return MAX_ROWS;
+        }
+
+        abstract Columns withRows(int rows);
+
+        abstract Columns withChars(int chars);
+
+        abstract void set(int row, long id, int numberEnd, int busType, int destination, int departure, int arrival);
+
+        abstract long id(int row);
+
+        abstract int numberEnd(int row);
+
+        abstract int busType(int row);
+
+        abstract int destination(int row);
+
+        abstract int departure(int row);
+
+        abstract int arrival(int row);
+
+        int numberStart(int row) {
+            return row == 0 ? 0 : numberEnd(row - 1);
+        }
+
+        abstract int compareNumbers(int a, int b);
+    }
+
+    //a primitive array per column on the heap
+    private static class HeapColumns extends Columns {
+        final long[] ids;
+        final int[] numberEnds;
+        final int[] busTypes;
+        final int[] destinations;
+        final short[] departures;
+        final short[] arrivals;
+
+        HeapColumns(int rows, int chars) {
+            this(new long[rows], new int[rows], new int[rows], new int[rows], new short[rows], new short[rows],
+                    new char[chars]);
+        }
+
+        HeapColumns(long[] ids, int[] numberEnds, int[] busTypes, int[] destinations, short[] departures,
+                short[] arrivals, char[] numberChars) {
+            super(CharBuffer.wrap(numberChars));
+            this.ids = ids;
+            this.numberEnds = numberEnds;
+            this.busTypes = busTypes;
+            this.destinations = destinations;
+            this.departures = departures;
+            this.arrivals = arrivals;
+        }
+
+        @Override
+        int capacity() {
+            return ids.length;
+        }
+
+        @Override
+        Columns withRows(int rows) {
+            return new HeapColumns(Arrays.copyOf(ids, rows), Arrays.copyOf(numberEnds, rows),
+                    Arrays.copyOf(busTypes, rows), Arrays.copyOf(destinations, rows),
+                    Arrays.copyOf(departures, rows), Arrays.copyOf(arrivals, rows), numberChars.array());
+        }
+
+        @Override
+        Columns withChars(int chars) {
+            return new HeapColumns(ids, numberEnds, busTypes, destinations, departures, arrivals,
+                    Arrays.copyOf(numberChars.array(), chars));
+        }
+
+        @Override
+        void set(int row, long id, int numberEnd, int busType, int destination, int departure, int arrival) {
+            ids[row] = id;
+            numberEnds[row] = numberEnd;
+            busTypes[row] = busType;
+            destinations[row] = destination;
+            departures[row] = (short) departure;
+            arrivals[row] = (short) arrival;
+        }
+
+        @Override
+        long id(int row) {
+            return ids[row];
+        }
+
+        @Override
+        int numberEnd(int row) {
+            return numberEnds[row];
+        }
+
+        @Override
+        int busType(int row) {
+            return busTypes[row];
+        }
+
+        @Override
+        int destination(int row) {
+            return destinations[row];
+        }
+
+        @Override
+        int departure(int row) {
+            return departures[row];
+        }
+
+        @Override
+        int arrival(int row) {
+            return arrivals[row];
+        }
+
+        @Override
+        int compareNumbers(int a, int b) {
+            char[] chars = numberChars.array();
+            return RouteNumberOrder.compare(chars, numberStart(a), numberEnds[a], chars, numberStart(b), numberEnds[b]);
+        }
+    }
+
+    //fixed-width row records in direct buffers outside the Java heap: id, number end, bus type code,
+    //destination code, departure and arrival minute; the collector sees a few buffer objects, not the rows.
+    //Records are split into segments of SEGMENT_ROWS rows, so no single buffer nears the 2 GB limit of a
+    //ByteBuffer and growing past one segment adds segments instead of copying the ones written
+    private static class DirectColumns extends Columns {
+        static final int RECORD = 24;
+        static final int NUMBER_END = 8;
+        static final int BUS_TYPE = 12;
+        static final int DESTINATION = 16;
+        static final int DEPARTURE = 20;
+        static final int ARRIVAL = 22;
+        static final int SEGMENT_SHIFT = 20;
+        static final int SEGMENT_ROWS = 1 << SEGMENT_SHIFT;
+        //route number characters share one char buffer, at most 2 GB
+        static final int MAX_CHARS = Integer.MAX_VALUE / 2;
+
+        //full segments of SEGMENT_ROWS rows, or a single smaller one while the table is small
+        final ByteBuffer[] segments;
+
+        DirectColumns(int rows, int chars) {
+            this(new ByteBuffer[] {records(rows)}, StringDictionary.direct(chars));
+        }
+
+        DirectColumns(ByteBuffer[] segments, CharBuffer numberChars) {
+            super(numberChars);
+            this.segments = segments;
+        }
+
+        private static ByteBuffer records(int rows) {
+            return ByteBuffer.allocateDirect(rows * RECORD).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        int capacity() {
+            return segments.length == 1 ? segments[0].capacity() / RECORD : segments.length * SEGMENT_ROWS;
+        }
+
+        @Override
+        int maxChars() {
+            return MAX_CHARS;
+        }
+
+        @Override
+        Columns withRows(int rows) {
+            if (rows <= SEGMENT_ROWS) {
+                ByteBuffer grown = records(rows);
+                grown.put(0, segments[0], 0, segments[0].capacity());
+                return new DirectColumns(new ByteBuffer[] {grown}, numberChars);
+            }
+            //segments already written are shared with the old generation, only a small first one is copied
+            ByteBuffer[] grown = Arrays.copyOf(segments, (rows + SEGMENT_ROWS - 1) >>> SEGMENT_SHIFT);
+            if (segments[0].capacity() < SEGMENT_ROWS * RECORD) {
+                grown[0] = records(SEGMENT_ROWS);
+                grown[0].put(0, segments[0], 0, segments[0].capacity());
+            }
+            for (int i = segments.length; i < grown.length; i++) {
+                grown[i] = records(SEGMENT_ROWS);
+            }
+            return new DirectColumns(grown, numberChars);
+        }
+
+        @Override
+        Columns withChars(int chars) {
+            CharBuffer grown = StringDictionary.direct(chars);
+            grown.put(0, numberChars, 0, numberChars.capacity());
+            return new DirectColumns(segments, grown);
+        }
+
+        private ByteBuffer segment(int row) {
+            return segments[row >>> SEGMENT_SHIFT];
+        }
+
+        private static int at(int row) {
+            return (row & (SEGMENT_ROWS - 1)) * RECORD;
+        }
+
+        @Override
+        void set(int row, long id, int numberEnd, int busType, int destination, int departure, int arrival) {
+            ByteBuffer records = segment(row);
+            int at = at(row);
+            records.putLong(at, id);
+            records.putInt(at + NUMBER_END, numberEnd);
+            records.putInt(at + BUS_TYPE, busType);
+            records.putInt(at + DESTINATION, destination);
+            records.putShort(at + DEPARTURE, (short) departure);
+            records.putShort(at + ARRIVAL, (short) arrival);
+        }
+
+        @Override
+        long id(int row) {
+            return segment(row).getLong(at(row));
+        }
+
+        @Override
+        int numberEnd(int row) {
+            return segment(row).getInt(at(row) + NUMBER_END);
+        }
+
+        @Override
+        int busType(int row) {
+            return segment(row).getInt(at(row) + BUS_TYPE);
+        }
+
+        @Override
+        int destination(int row) {
+            return segment(row).getInt(at(row) + DESTINATION);
+        }
+
+        @Override
+        int departure(int row) {
+            return segment(row).getShort(at(row) + DEPARTURE);
+        }
+
+        @Override
+        int arrival(int row) {
+            return segment(row).getShort(at(row) + ARRIVAL);
+        }
+
+        @Override
+        int compareNumbers(int a, int b) {
+            return RouteNumberOrder.compare(numberChars, numberStart(a), numberEnd(a),
+                    numberChars, numberStart(b), numberEnd(b));
+        }
+    }
+
+    private final StringDictionary dictionary;
+    private volatile Columns columns;
+    //writer side only
+    private int rows;
+    private int chars;
+    private int live;
+    //current row of each live id
+    private final IdRowMap rowOfId = new IdRowMap();
+
+    public RouteTable(StringDictionary dictionary) {
+        this(dictionary, false);
+    }
+
+    //offHeap keeps the rows in direct buffers; pair it with an OffHeapStringDictionary to keep strings there too
+    public RouteTable(StringDictionary dictionary, boolean offHeap) {
+        this.dictionary = dictionary;
+        this.columns = offHeap ? new DirectColumns(16, 64) : new HeapColumns(16, 64);
+    }
+
+    //a table with its dictionary, on or off the heap
+    static RouteTable create(boolean offHeap) {
+        return offHeap ? new RouteTable(new OffHeapStringDictionary(), true)
+                : new RouteTable(new HeapStringDictionary());
+    }
+
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int rowCount() {
+        return rows;
+    }
+
+    public int liveCount() {
+        return live;
+    }
+
+    //stores the route as a new row and makes it the current row of its id
+    public int append(BusRoute route) {
+        String number = route.getRouteNumber();
+        Columns c = columns;
+        if (rows == c.capacity()) {
+            if (rows == Columns.MAX_ROWS) {
+                throw new IllegalStateException("the route table is full at " + rows + " rows");
+            }
+            c = c.withRows((int) Math.min(rows * 2L, Columns.MAX_ROWS));
+        }
+        long needed = (long) chars + number.length();
+        if (needed > c.numberChars.capacity()) {
+            if (needed > c.maxChars()) {
+                throw new IllegalStateException("the route table is full at " + c.maxChars() + " route number characters");
+            }
+            c = c.withChars((int) Math.min(Math.max(c.numberChars.capacity() * 2L, needed), c.maxChars()));
+        }
+        int row = rows;
+        for (int i = 0; i < number.length(); i++) {
+            c.numberChars.put(chars++, number.charAt(i));
+        }
+        c.set(row, route.getId(), chars, dictionary.encode(route.getBusType()),
+                dictionary.encode(route.getDestination()), BusRoute.toMinutes(route.getDepartureTime()),
+                BusRoute.toMinutes(route.getArrivalTime()));
+        columns = c;
+        rows++;
+
+        if (rowOfId.put(route.getId(), row)) live++;
+        return row;
+    }
+
+    public void delete(long id) {
+        if (rowOfId.remove(id)) live--;
+    }
+
+    //current row of the id, -1 if there is none
+    public int rowOf(long id) {
+        return rowOfId.get(id);
+    }
+
+    //current rows in id order, i.e. in the order routes were created; rows are appended in id order
+    //until an edit appends a newer row for an old id, so the sort is only needed after edits
+    public int[] liveRows() {
+        int[] result = new int[live];
+        int n = 0;
+        boolean sorted = true;
+        long lastId = Long.MIN_VALUE;
+        for (int row = 0; row < rows; row++) {
+            long id = id(row);
+            if (rowOfId.get(id) != row) continue;
+            if (id < lastId) sorted = false;
+            lastId = id;
+            result[n++] = row;
+        }
+        if (!sorted) ParallelRows.sort(result, n, (a, b) -> Long.compare(id(a), id(b)));
+        return result;
+    }
+
+    public long id(int row) {
+        return columns.id(row);
+    }
+
+    public String routeNumber(int row) {
+        Columns c = columns;
+        int start = c.numberStart(row);
+        return StringDictionary.read(c.numberChars, start, c.numberEnd(row) - start);
+    }
+
+    public int numberLength(int row) {
+        Columns c = columns;
+        return c.numberEnd(row) - c.numberStart(row);
+    }
+
+    //copies the route number of the row to the start of dst, for writers that must not make a String per row
+    public void copyNumber(int row, char[] dst) {
+        Columns c = columns;
+        int start = c.numberStart(row);
+        c.numberChars.get(start, dst, 0, c.numberEnd(row) - start);
+    }
+
+    public int busTypeCode(int row) {
+        return columns.busType(row);
+    }
+
+    public int destinationCode(int row) {
+        return columns.destination(row);
+    }
+
+    public String busType(int row) {
+        return dictionary.decode(columns.busType(row));
+    }
+
+    public String destination(int row) {
+        return dictionary.decode(columns.destination(row));
+    }
+
+    public int departureMinute(int row) {
+        return columns.departure(row);
+    }
+
+    public int arrivalMinute(int row) {
+        return columns.arrival(row);
+    }
+
+    //materializes the row for code that works with route objects
+    public BusRoute route(int row) {
+        Columns c = columns;
+        int start = c.numberStart(row);
+        return new BusRoute(c.id(row), StringDictionary.read(c.numberChars, start, c.numberEnd(row) - start),
+                dictionary.decode(c.busType(row)), dictionary.decode(c.destination(row)),
+                BusRoute.fromMinutes(c.departure(row)), BusRoute.fromMinutes(c.arrival(row)));
+    }
+
+    public int compareNumbers(int a, int b) {
+        return columns.compareNumbers(a, b);
+    }
+
+    public int compareBusTypes(int a, int b) {
+        Columns c = columns;
+        return dictionary.compare(c.busType(a), c.busType(b));
+    }
+
+    public int compareDestinations(int a, int b) {
+        Columns c = columns;
+        return dictionary.compare(c.destination(a), c.destination(b));
+    }
+
+    public boolean numberEquals(int row, String value, boolean ignoreCase) {
+        Columns c = columns;
+        int start = c.numberStart(row);
+        int length = c.numberEnd(row) - start;
+        if (length != value.length()) return false;
+        for (int i = 0; i < length; i++) {
+            char a = c.numberChars.get(start + i);
+            char b = value.charAt(i);
+            if (a != b && !(ignoreCase && sameIgnoringCase(a, b))) return false;
+        }
+        return true;
+    }
+
+    //same hash for route numbers that are equal ignoring case
+    public int numberHash(int row) {
+        Columns c = columns;
+        int h = 0;
+        for (int i = c.numberStart(row); i < c.numberEnd(row); i++) {
+            h = 31 * h + fold(c.numberChars.get(i));
+        }
+        return h;
+    }
+
+    static int numberHash(String value) {
+        int h = 0;
+        for (int i = 0; i < value.length(); i++) {
+            h = 31 * h + fold(value.charAt(i));
+        }
+        return h;
+    }
+
+    //the comparison String.equalsIgnoreCase makes
+    private static boolean sameIgnoringCase(char a, char b) {
+        return fold(a) == fold(b);
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
+
+//int sequence read by index, so row lists can be viewed without copying
+interface IntSequence {
+    int size();
+
+    int get(int index);
+
+    static IntSequence of(int[] values) {
+        return new IntSequence() {
+            @Override
+            public int size() {
+                return values.length;
+            }
+
+            @Override
+            public int get(int index) {
+                return values[index];
+            }
+        };
+    }
+}
+
+//immutable int list split into small chunks; a change copies one chunk and the chunk table, the rest is shared
+class ChunkedIntList implements IntSequence {
+    private static final int CHUNK = 512;
+    private static final int[][] NO_CHUNKS = new int[0][];
+    static final ChunkedIntList EMPTY = new ChunkedIntList(NO_CHUNKS);
+
+    private final int[][] chunks;
+    //index one past the last element of each chunk
+    private final int[] ends;
+
+    private ChunkedIntList(int[][] chunks) {
+        this.chunks = chunks;
+        this.ends = new int[chunks.length];
+        int end = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            end += chunks[c].length;
+            ends[c] = end;
+        }
+    }
+
+    static ChunkedIntList of(int[] items, int count) {
+        int[][] chunks = new int[(count + CHUNK - 1) / CHUNK][];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = Arrays.copyOfRange(items, c * CHUNK, Math.min(count, (c + 1) * CHUNK));
+        }
+        return new ChunkedIntList(chunks);
+    }
+
+    @Override
+    public int size() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    @Override
+    public int get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size());
+        }
+        int c = chunkOf(index);
+        return chunks[c][index - start(c)];
+    }
+
+    public ChunkedIntList plus(int index, int item) {
+        if (chunks.length == 0) {
+            return new ChunkedIntList(new int[][] {{item}});
+        }
+        //an index at the very end goes into the last chunk
+        int c = index == size() ? chunks.length - 1 : chunkOf(index);
+        int[] old = chunks[c];
+        int at = index - start(c);
+        int[] grown = new int[old.length + 1];
+        System.arraycopy(old, 0, grown, 0, at);
+        grown[at] = item;
+        System.arraycopy(old, at, grown, at + 1, old.length - at);
+        if (grown.length <= 2 * CHUNK) {
+            int[][] table = chunks.clone();
+            table[c] = grown;
+            return new ChunkedIntList(table);
+        }
+        //split a full chunk in halves
+        int[][] table = new int[chunks.length + 1][];
+        System.arraycopy(chunks, 0, table, 0, c);
+        table[c] = Arrays.copyOfRange(grown, 0, grown.length / 2);
+        table[c + 1] = Arrays.copyOfRange(grown, grown.length / 2, grown.length);
+        System.arraycopy(chunks, c + 1, table, c + 2, chunks.length - c - 1);
+        return new ChunkedIntList(table);
+    }
+
+    public int[] toArray() {
+        int[] items = new int[size()];
+        for (int c = 0; c < chunks.length; c++) {
+            System.arraycopy(chunks[c], 0, items, start(c), chunks[c].length);
+        }
+        return items;
+    }
+
+    public ChunkedIntList minus(int index) {
+        int c = chunkOf(index);
+        int[] old = chunks[c];
+        int at = index - start(c);
+        if (old.length == 1) {
+            int[][] table = new int[chunks.length - 1][];
+            System.arraycopy(chunks, 0, table, 0, c);
+            System.arraycopy(chunks, c + 1, table, c, chunks.length - c - 1);
+            return new ChunkedIntList(table);
+        }
+        int[] shrunk = new int[old.length - 1];
+        System.arraycopy(old, 0, shrunk, 0, at);
+        System.arraycopy(old, at + 1, shrunk, at, old.length - at - 1);
+        int[][] table = chunks.clone();
+        table[c] = shrunk;
+        return new ChunkedIntList(table);
+    }
+
+    private int start(int chunk) {
+        return chunk == 0 ? 0 : ends[chunk - 1];
+    }
+
+    //first chunk whose end is past index
+    private int chunkOf(int index) {
+        int lo = 0;
+        int hi = ends.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= index) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
+
+//immutable sorted list of distinct strings in chunks, so adding or removing one copies a chunk and the chunk table
+class ChunkedKeyList extends AbstractList<String> implements RandomAccess {
+    private static final int CHUNK = 512;
+    private static final String[][] NO_CHUNKS = new String[0][];
+    static final ChunkedKeyList EMPTY = new ChunkedKeyList(NO_CHUNKS);
+
+    private final String[][] chunks;
+    //index one past the last element of each chunk
+    private final int[] ends;
+
+    private ChunkedKeyList(String[][] chunks) {
+        this.chunks = chunks;
+        this.ends = new int[chunks.length];
+        int end = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            end += chunks[c].length;
+            ends[c] = end;
+        }
+    }
+
+    //keys must be sorted and distinct
+    static ChunkedKeyList of(String[] keys) {
+        String[][] chunks = new String[(keys.length + CHUNK - 1) / CHUNK][];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = Arrays.copyOfRange(keys, c * CHUNK, Math.min(keys.length, (c + 1) * CHUNK));
+        }
+        return new ChunkedKeyList(chunks);
+    }
+
+    @Override
+    public int size() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size());
+        }
+        int c = chunkOf(index);
+        return chunks[c][index - start(c)];
+    }
+
+    //like Arrays.binarySearch: the index of the key, or -(insertion point) - 1
+    public int search(String key) {
+        int c = chunkFor(key);
+        if (c == chunks.length) return -size() - 1;
+        int pos = Arrays.binarySearch(chunks[c], key);
+        return pos >= 0 ? start(c) + pos : pos - start(c);
+    }
+
+    public ChunkedKeyList plus(String key) {
+        if (chunks.length == 0) {
+            return new ChunkedKeyList(new String[][] {{key}});
+        }
+        //a key after every other goes into the last chunk
+        int c = Math.min(chunkFor(key), chunks.length - 1);
+        String[] old = chunks[c];
+        int pos = Arrays.binarySearch(old, key);
+        if (pos >= 0) return this;
+        int at = -pos - 1;
+        String[] grown = new String[old.length + 1];
+        System.arraycopy(old, 0, grown, 0, at);
+        grown[at] = key;
+        System.arraycopy(old, at, grown, at + 1, old.length - at);
+        if (grown.length <= 2 * CHUNK) {
+            String[][] table = chunks.clone();
+            table[c] = grown;
+            return new ChunkedKeyList(table);
+        }
+        //split a full chunk in halves
+        String[][] table = new String[chunks.length + 1][];
+        System.arraycopy(chunks, 0, table, 0, c);
+        table[c] = Arrays.copyOfRange(grown, 0, grown.length / 2);
+        table[c + 1] = Arrays.copyOfRange(grown, grown.length / 2, grown.length);
+        System.arraycopy(chunks, c + 1, table, c + 2, chunks.length - c - 1);
+        return new ChunkedKeyList(table);
+    }
+
+    public ChunkedKeyList minus(String key) {
+        int c = chunkFor(key);
+        if (c == chunks.length) return this;
+        String[] old = chunks[c];
+        int at = Arrays.binarySearch(old, key);
+        if (at < 0) return this;
+        if (old.length == 1) {
+            String[][] table = new String[chunks.length - 1][];
+            System.arraycopy(chunks, 0, table, 0, c);
+            System.arraycopy(chunks, c + 1, table, c, chunks.length - c - 1);
+            return new ChunkedKeyList(table);
+        }
+        String[] shrunk = new String[old.length - 1];
+        System.arraycopy(old, 0, shrunk, 0, at);
+        System.arraycopy(old, at + 1, shrunk, at, old.length - at - 1);
+        String[][] table = chunks.clone();
+        table[c] = shrunk;
+        return new ChunkedKeyList(table);
+    }
+
+    private int start(int chunk) {
+        return chunk == 0 ? 0 : ends[chunk - 1];
+    }
+
+    //first chunk whose end is past index
+    private int chunkOf(int index) {
+        int lo = 0;
+        int hi = ends.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= index) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //first chunk whose last key is not before key, chunks.length if there is none
+    private int chunkFor(String key) {
+        int lo = 0;
+        int hi = chunks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            String[] chunk = chunks[mid];
+            if (chunk[chunk.length - 1].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
+
+//routes of a row sequence, each materialized from the table when it is read
+class RowList extends AbstractList<BusRoute> implements RandomAccess {
+    private final RouteTable table;
+    private final IntSequence rows;
+
+    public RowList(RouteTable table, IntSequence rows) {
+        this.table = table;
+        this.rows = rows;
+    }
+
+    public RowList(RouteTable table, int[] rows) {
+        this(table, IntSequence.of(rows));
+    }
+
+    @Override
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public BusRoute get(int index) {
+        return table.route(rows.get(index));
+    }
+}
+
+//total order over rows of one table
+interface RowOrder {
+    int compare(int a, int b);
+}
+
+//sort and filter over row numbers; large inputs are split over the common fork-join pool,
+//small ones run on the caller's thread, and both give exactly the same result
+class ParallelRows {
+    //below these sizes splitting costs more than it saves
+    static final int SORT_THRESHOLD = 1 << 13;
+    static final int FILTER_THRESHOLD = 1 << 15;
+
+    //stable merge sort of rows[0..count)
+    static void sort(int[] rows, int count, RowOrder order) {
+        int[] buffer = Arrays.copyOf(rows, count);
+        if (count < SORT_THRESHOLD) {
+            mergeSort(buffer, rows, 0, count, order);
+        } else {
+            ForkJoinPool.commonPool().invoke(new SortTask(buffer, rows, 0, count, order));
+        }
+    }
+
+    //the rows of the sequence that pass the test, in sequence order
+    static int[] filter(IntSequence rows, IntPredicate test) {
+        int size = rows.size();
+        if (size < FILTER_THRESHOLD) {
+            return filter(rows, 0, size, test);
+        }
+        //each chunk fills its own buffer, the buffers are joined in chunk order
+        int chunks = Math.min((size + FILTER_THRESHOLD - 1) / FILTER_THRESHOLD,
+                4 * ForkJoinPool.commonPool().getParallelism());
+        List<ForkJoinTask<int[]>> parts = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int from = (int) ((long) size * c / chunks);
+            int to = (int) ((long) size * (c + 1) / chunks);
+            parts.add(ForkJoinPool.commonPool().submit(() -> filter(rows, from, to, test)));
+        }
+        int total = 0;
+        int[][] found = new int[chunks][];
+        for (int c = 0; c < chunks; c++) {
+            found[c] = parts.get(c).join();
+            total += found[c].length;
+        }
+        int[] result = new int[total];
+        int n = 0;
+        for (int[] part : found) {
+            System.arraycopy(part, 0, result, n, part.length);
+            n += part.length;
+        }
+        return result;
+    }
+
+    private static int[] filter(IntSequence rows, int from, int to, IntPredicate test) {
+        int[] found = new int[Math.min(to - from, 1024)];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            int row = rows.get(i);
+            if (!test.test(row)) continue;
+            if (n == found.length) found = Arrays.copyOf(found, n * 2);
+            found[n++] = row;
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    //same halves and merges as mergeSort, with the halves sorted in parallel
+    private static class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] src;
+        private final int[] dst;
+        private final int from;
+        private final int to;
+        private final RowOrder order;
+
+        SortTask(int[] src, int[] dst, int from, int to, RowOrder order) {
+            this.src = src;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+            this.order = order;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < SORT_THRESHOLD) {
+                mergeSort(src, dst, from, to, order);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(dst, src, from, mid, order), new SortTask(dst, src, mid, to, order));
+            merge(src, dst, from, mid, to, order);
+        }
+    }
+
+    //sorts src[from..to) into dst[from..to); src must hold the same rows as dst there and is used as scratch
+    private static void mergeSort(int[] src, int[] dst, int from, int to, RowOrder order) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int row = dst[i];
+                int j = i - 1;
+                while (j >= from && order.compare(dst[j], row) > 0) {
+                    dst[j + 1] = dst[j];
+                    j--;
+                }
+                dst[j + 1] = row;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(dst, src, from, mid, order);
+        mergeSort(dst, src, mid, to, order);
+        merge(src, dst, from, mid, to, order);
+    }
+
+    //merges the sorted halves src[from..mid) and src[mid..to) into dst, left first on ties
+    private static void merge(int[] src, int[] dst, int from, int mid, int to, RowOrder order) {
+        for (int i = from, p = from, q = mid; i < to; i++) {
+            if (q >= to || (p < mid && order.compare(src[p], src[q]) <= 0)) {
+                dst[i] = src[p++];
+            } else {
+                dst[i] = src[q++];
+            }
+        }
+    }
+}
+
+//immutable list of rows ordered by a row order, add and remove return a new view
+class SortedRouteView {
+    private final RowOrder order;
+    private final ChunkedIntList rows;
+
+    public SortedRouteView(RowOrder order) {
+        this(order, ChunkedIntList.EMPTY);
+    }
+
+    private SortedRouteView(RowOrder order, ChunkedIntList rows) {
+        this.order = order;
+        this.rows = rows;
+    }
+
+    public SortedRouteView rebuild(int[] live) {
+        int[] sorted = live.clone();
+        ParallelRows.sort(sorted, sorted.length, order);
+        return new SortedRouteView(order, ChunkedIntList.of(sorted, sorted.length));
+    }
+
+    public SortedRouteView add(int row) {
+        return new SortedRouteView(order, rows.plus(position(row), row));
+    }
+
+    public SortedRouteView remove(int row) {
+        int pos = position(row);
+        if (pos == rows.size() || rows.get(pos) != row) return this;
+        return new SortedRouteView(order, rows.minus(pos));
+    }
+
+    public ChunkedIntList rows() {
+        return rows;
+    }
+
+    //puts rows[0..count) in the order of this view
+    public void sort(int[] rows, int count) {
+        ParallelRows.sort(rows, count, order);
+    }
+
+    //first position whose row has key >= the given one
+    public int lowerBound(IntUnaryOperator key, int value) {
+        int lo = 0;
+        int hi = rows.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.applyAsInt(rows.get(mid)) < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int position(int row) {
+        int lo = 0;
+        int hi = rows.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (order.compare(rows.get(mid), row) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
+
+//immutable case-insensitive index of a dictionary-coded column: key -> rows in id order or in a given order,
+//split into shards so a change copies one shard and one bucket
+class CodeIndex {
+    private static final int SHARDS = 256;
+
+    private final RouteTable table;
+    private final IntUnaryOperator code;
+    //order of the rows of a bucket, must end in an id comparison so that every row has one position
+    private final RowOrder order;
+    private final Map<String, ChunkedIntList>[] shards;
+
+    public CodeIndex(RouteTable table, IntUnaryOperator code) {
+        this(table, code, (a, b) -> Long.compare(table.id(a), table.id(b)));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CodeIndex(RouteTable table, IntUnaryOperator code, RowOrder order) {
+        this(table, code, order, (Map<String, ChunkedIntList>[]) new Map[SHARDS]);
+    }
+
+    private CodeIndex(RouteTable table, IntUnaryOperator code, RowOrder order, Map<String, ChunkedIntList>[] shards) {
+        this.table = table;
+        this.code = code;
+        this.order = order;
+        this.shards = shards;
+    }
+
+    //live rows must be in the order of the buckets
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CodeIndex rebuild(int[] live) {
+        Map<String, int[]> buckets = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        //key of each code, looked up once: an off-heap dictionary makes a new String on every call
+        String[] keys = new String[16];
+        for (int row : live) {
+            int c = code.applyAsInt(row);
+            if (c >= keys.length) keys = Arrays.copyOf(keys, Math.max(c + 1, keys.length * 2));
+            String k = keys[c];
+            if (k == null) k = keys[c] = table.getDictionary().key(c);
+            int n = counts.merge(k, 1, Integer::sum);
+            int[] bucket = buckets.get(k);
+            if (bucket == null || bucket.length < n) {
+                bucket = bucket == null ? new int[4] : Arrays.copyOf(bucket, bucket.length * 2);
+                buckets.put(k, bucket);
+            }
+            bucket[n - 1] = row;
+        }
+        Map<String, ChunkedIntList>[] built = (Map<String, ChunkedIntList>[]) new Map[SHARDS];
+        for (Map.Entry<String, int[]> e : buckets.entrySet()) {
+            int s = shard(e.getKey());
+            if (built[s] == null) built[s] = new HashMap<>();
+            built[s].put(e.getKey(), ChunkedIntList.of(e.getValue(), counts.get(e.getKey())));
+        }
+        return new CodeIndex(table, code, order, built);
+    }
+
+    public CodeIndex add(int row) {
+        String k = key(row);
+        int s = shard(k);
+        Map<String, ChunkedIntList> shard = shards[s] == null ? new HashMap<>() : new HashMap<>(shards[s]);
+        ChunkedIntList bucket = shard.getOrDefault(k, ChunkedIntList.EMPTY);
+        shard.put(k, bucket.plus(position(bucket, row), row));
+        return with(s, shard);
+    }
+
+    public CodeIndex remove(int row) {
+        String k = key(row);
+        int s = shard(k);
+        ChunkedIntList bucket = shards[s] == null ? null : shards[s].get(k);
+        if (bucket == null) return this;
+        int pos = position(bucket, row);
+        if (pos == bucket.size() || bucket.get(pos) != row) return this;
+        Map<String, ChunkedIntList> shard = new HashMap<>(shards[s]);
+        if (bucket.size() == 1) {
+            shard.remove(k);
+        } else {
+            shard.put(k, bucket.minus(pos));
+        }
+        return with(s, shard.isEmpty() ? null : shard);
+    }
+
+    public IntSequence find(String value) {
+        String k = RouteIndex.key(value);
+        Map<String, ChunkedIntList> shard = shards[shard(k)];
+        ChunkedIntList bucket = shard == null ? null : shard.get(k);
+        return bucket == null ? ChunkedIntList.EMPTY : bucket;
+    }
+
+    //number of rows with this key
+    public int count(String key) {
+        return find(key).size();
+    }
+
+    //keys that have rows
+    public List<String> keys() {
+        List<String> result = new ArrayList<>();
+        for (Map<String, ChunkedIntList> shard : shards) {
+            if (shard != null) result.addAll(shard.keySet());
+        }
+        return result;
+    }
+
+    String key(int row) {
+        return table.getDictionary().key(code.applyAsInt(row));
+    }
+
+    //first position in the bucket whose row does not come before the given one
+    private int position(ChunkedIntList bucket, int row) {
+        int lo = 0;
+        int hi = bucket.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (order.compare(bucket.get(mid), row) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private CodeIndex with(int s, Map<String, ChunkedIntList> shard) {
+        Map<String, ChunkedIntList>[] copy = shards.clone();
+        copy[s] = shard;
+        return new CodeIndex(table, code, order, copy);
+    }
+
+    private static int shard(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (SHARDS - 1);
+    }
+}
+
+//immutable index of the distinct keys of a text column for ranked prefix and typo-tolerant lookups;
+//works on distinct values, so its cost depends on how many there are, not on how many routes use them
+class TermIndex {
+    private static final String[] NO_KEYS = new String[0];
+    //keys looked at per prefix query, so a one-letter prefix cannot walk the whole dictionary
+    private static final int PREFIX_SCAN = 1000;
+    private static final int SHARDS = 256;
+
+    //all keys, sorted, so a prefix is a range
+    private final ChunkedKeyList keys;
+    //trigram of the padded key -> keys containing it; in shards and chunks, so a change copies only the shards
+    //of its key's trigrams and one chunk of each of their key lists; null for an empty shard
+    private final Map<String, ChunkedKeyList>[] grams;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TermIndex() {
+        this(ChunkedKeyList.EMPTY, (Map<String, ChunkedKeyList>[]) new Map[SHARDS]);
+    }
+
+    private TermIndex(ChunkedKeyList keys, Map<String, ChunkedKeyList>[] grams) {
+        this.keys = keys;
+        this.grams = grams;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TermIndex rebuild(Collection<String> all) {
+        String[] sorted = new TreeSet<>(all).toArray(NO_KEYS);
+        Map<String, List<String>> building = new HashMap<>();
+        for (String key : sorted) {
+            for (String gram : distinctGrams(key)) {
+                building.computeIfAbsent(gram, g -> new ArrayList<>()).add(key);
+            }
+        }
+        Map<String, ChunkedKeyList>[] built = (Map<String, ChunkedKeyList>[]) new Map[SHARDS];
+        for (Map.Entry<String, List<String>> e : building.entrySet()) {
+            int s = shard(e.getKey());
+            if (built[s] == null) built[s] = new HashMap<>();
+            built[s].put(e.getKey(), ChunkedKeyList.of(e.getValue().toArray(NO_KEYS)));
+        }
+        return new TermIndex(ChunkedKeyList.of(sorted), built);
+    }
+
+    public TermIndex add(String key) {
+        if (keys.search(key) >= 0) return this;
+        Map<String, ChunkedKeyList>[] copy = grams.clone();
+        boolean[] copied = new boolean[SHARDS];
+        for (String gram : distinctGrams(key)) {
+            int s = shard(gram);
+            if (!copied[s]) {
+                copy[s] = copy[s] == null ? new HashMap<>() : new HashMap<>(copy[s]);
+                copied[s] = true;
+            }
+            copy[s].put(gram, copy[s].getOrDefault(gram, ChunkedKeyList.EMPTY).plus(key));
+        }
+        return new TermIndex(keys.plus(key), copy);
+    }
+
+    public TermIndex remove(String key) {
+        if (keys.search(key) < 0) return this;
+        Map<String, ChunkedKeyList>[] copy = grams.clone();
+        boolean[] copied = new boolean[SHARDS];
+        for (String gram : distinctGrams(key)) {
+            int s = shard(gram);
+            if (!copied[s]) {
+                copy[s] = new HashMap<>(copy[s]);
+                copied[s] = true;
+            }
+            ChunkedKeyList shrunk = copy[s].get(gram).minus(key);
+            if (shrunk.isEmpty()) {
+                copy[s].remove(gram);
+            } else {
+                copy[s].put(gram, shrunk);
+            }
+        }
+        for (int s = 0; s < SHARDS; s++) {
+            if (copied[s] && copy[s].isEmpty()) copy[s] = null;
+        }
+        return new TermIndex(keys.minus(key), copy);
+    }
+
+    //keys matching the query best first: the exact key, then completions of it, then keys within a few typos;
+    //ties go to the key with more routes, then alphabetically
+    public List<String> match(String query, ToIntFunction<String> routes, int limit) {
+        String q = RouteIndex.key(query.trim());
+        if (q.isEmpty()) return Collections.emptyList();
+        Map<String, Integer> scores = new HashMap<>();
+
+        int from = lowerBound(q);
+        for (int i = from; i < keys.size() && i < from + PREFIX_SCAN && keys.get(i).startsWith(q); i++) {
+            //completions rank by how much is left to type
+            String key = keys.get(i);
+            scores.put(key, key.length() - q.length());
+        }
+
+        int typos = maxTypos(q);
+        if (typos > 0) {
+            //an edit changes at most 3 trigrams and a swap of neighbours at most 4,
+            //so keys within k of them share at least this many trigrams with the query
+            List<String> queryGrams = grams(q);
+            int needed = queryGrams.size() - 4 * typos;
+            //such a key has one of the rarest size - needed + 1 trigrams, the common ones need not be read
+            queryGrams.sort(Comparator.comparingInt(g -> keysWith(g).size()));
+            Set<String> candidates = new HashSet<>();
+            for (String gram : queryGrams.subList(0, queryGrams.size() - needed + 1)) {
+                candidates.addAll(keysWith(gram));
+            }
+            for (String key : candidates) {
+                if (scores.containsKey(key)) continue;
+                int distance = distance(q, key, typos);
+                //after every prefix match, however long
+                if (distance <= typos) scores.put(key, Integer.MAX_VALUE - typos - 1 + distance);
+            }
+        }
+
+        List<String> ranked = new ArrayList<>(scores.keySet());
+        ranked.sort(Comparator.<String>comparingInt(scores::get)
+                .thenComparing(Comparator.comparingInt(routes).reversed())
+                .thenComparing(Comparator.naturalOrder()));
+        return ranked.size() > limit ? ranked.subList(0, limit) : ranked;
+    }
+
+    //short queries have too few trigrams to find typos reliably
+    private static int maxTypos(String query) {
+        if (query.length() < 3) return 0;
+        return query.length() < 8 ? 1 : 2;
+    }
+
+    //whether match could return the key for the query, whatever else the index holds
+    static boolean matches(String query, String key) {
+        String q = RouteIndex.key(query.trim());
+        if (q.isEmpty()) return false;
+        if (key.startsWith(q)) return true;
+        int typos = maxTypos(q);
+        return typos > 0 && distance(q, key, typos) <= typos;
+    }
+
+    //edits and swaps of neighbouring letters needed to turn a into b (optimal string alignment),
+    //or max + 1 as soon as it is known to exceed max
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) return max + 1;
+        int[] beforePrevious = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            int best = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                row[j] = Math.min(Math.min(row[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    row[j] = Math.min(row[j], beforePrevious[j - 2] + 1);
+                }
+                best = Math.min(best, row[j]);
+            }
+            //later rows never go below the best of this one, a swap costs no less than a substitution
+            if (best > max) return max + 1;
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = row;
+            row = swap;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+
+    //trigrams of the key padded with two spaces on each side, so short keys and their ends have some too
+    private static List<String> grams(String key) {
+        String padded = "  " + key + "  ";
+        List<String> result = new ArrayList<>(padded.length() - 2);
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            result.add(padded.substring(i, i + 3));
+        }
+        return result;
+    }
+
+    private static Set<String> distinctGrams(String key) {
+        return new HashSet<>(grams(key));
+    }
+
+    //keys containing the trigram, sorted
+    private ChunkedKeyList keysWith(String gram) {
+        Map<String, ChunkedKeyList> shard = grams[shard(gram)];
+        return shard == null ? ChunkedKeyList.EMPTY : shard.getOrDefault(gram, ChunkedKeyList.EMPTY);
+    }
+
+    //from the top bits of the mixed hash, the HashMap of the shard indexes by the low ones
+    private static int shard(String gram) {
+        return (gram.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(SHARDS));
+    }
+
+    private int lowerBound(String key) {
+        int pos = keys.search(key);
+        return pos >= 0 ? pos : -pos - 1;
+    }
+}
+
+//immutable case-insensitive route number index: open addressing over rows in shards, a change copies one shard
+class NumberIndex {
+    private static final int SHARDS = 256;
+    private static final int[] EMPTY_SHARD = new int[8];
+
+    private final RouteTable table;
+    //row + 1 per slot, 0 for a free slot
+    private final int[][] slots;
+    private final int[] counts;
+
+    public NumberIndex(RouteTable table) {
+        this(table, new int[SHARDS][], new int[SHARDS]);
+        Arrays.fill(slots, EMPTY_SHARD);
+    }
+
+    private NumberIndex(RouteTable table, int[][] slots, int[] counts) {
+        this.table = table;
+        this.slots = slots;
+        this.counts = counts;
+    }
+
+    public NumberIndex rebuild(int[] live) {
+        int[] perShard = new int[SHARDS];
+        for (int row : live) {
+            perShard[shard(mix(table.numberHash(row)))]++;
+        }
+        int[][] built = new int[SHARDS][];
+        for (int s = 0; s < SHARDS; s++) {
+            built[s] = perShard[s] == 0 ? EMPTY_SHARD : new int[capacity(perShard[s])];
+        }
+        for (int row : live) {
+            int h = mix(table.numberHash(row));
+            insert(built[shard(h)], h, row);
+        }
+        return new NumberIndex(table, built, perShard);
+    }
+
+    public NumberIndex add(int row) {
+        int h = mix(table.numberHash(row));
+        int s = shard(h);
+        int[] copy;
+        if (capacity(counts[s] + 1) > slots[s].length) {
+            copy = new int[capacity(counts[s] + 1)];
+            for (int entry : slots[s]) {
+                if (entry != 0) insert(copy, mix(table.numberHash(entry - 1)), entry - 1);
+            }
+        } else {
+            copy = slots[s].clone();
+        }
+        insert(copy, h, row);
+        return with(s, copy, counts[s] + 1);
+    }
+
+    public NumberIndex remove(int row) {
+        int h = mix(table.numberHash(row));
+        int s = shard(h);
+        int[] shard = slots[s];
+        int mask = shard.length - 1;
+        for (int i = home(h, mask); shard[i] != 0; i = (i + 1) & mask) {
+            if (shard[i] != row + 1) continue;
+            int[] copy = shard.clone();
+            //backward shift: move later entries of the probe run into the gap
+            int gap = i;
+            for (int j = (i + 1) & mask; copy[j] != 0; j = (j + 1) & mask) {
+                int want = home(mix(table.numberHash(copy[j] - 1)), mask);
+                if (((j - want) & mask) >= ((j - gap) & mask)) {
+                    copy[gap] = copy[j];
+                    gap = j;
+                }
+            }
+            copy[gap] = 0;
+            return with(s, copy, counts[s] - 1);
+        }
+        return this;
+    }
+
+    //rows whose number equals value ignoring case, in id order
+    public int[] find(String value) {
+        int h = mix(RouteTable.numberHash(value));
+        int[] shard = slots[shard(h)];
+        int mask = shard.length - 1;
+        int[] found = new int[4];
+        int n = 0;
+        for (int i = home(h, mask); shard[i] != 0; i = (i + 1) & mask) {
+            int row = shard[i] - 1;
+            if (table.numberEquals(row, value, true)) {
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = row;
+            }
+        }
+        found = Arrays.copyOf(found, n);
+        ParallelRows.sort(found, n, (a, b) -> Long.compare(table.id(a), table.id(b)));
+        return found;
+    }
+
+    private NumberIndex with(int s, int[] shard, int count) {
+        int[][] copy = slots.clone();
+        copy[s] = shard;
+        int[] countsCopy = counts.clone();
+        countsCopy[s] = count;
+        return new NumberIndex(table, copy, countsCopy);
+    }
+
+    private static void insert(int[] shard, int h, int row) {
+        int mask = shard.length - 1;
+        int i = home(h, mask);
+        while (shard[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        shard[i] = row + 1;
+    }
+
+    //at most half full
+    private static int capacity(int count) {
+        return Math.max(8, Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1);
+    }
+
+    private static int mix(int h) {
+        return h * 0x9E3779B9;
+    }
+
+    private static int shard(int h) {
+        return h >>> 24;
+    }
+
+    private static int home(int h, int mask) {
+        return (h >>> 4) & mask;
+    }
+}
+
+//conjunction of conditions on routes, an unset condition matches every route;
+//text conditions ignore case, time ranges are inclusive and wrap past midnight when from > to
+class RouteQuery {
+    static final RouteQuery ALL = new RouteQuery(null, null, null, -1, -1, -1, -1);
+
+    private final String routeNumber;
+    private final String busType;
+    private final String destination;
+    //search keys of busType and destination, compared with the dictionary without decoding each row
+    private final String busTypeKey;
+    private final String destinationKey;
+    //minutes of the day, -1 when unset
+    private final int departureFrom;
+    private final int departureTo;
+    private final int arrivalFrom;
+    private final int arrivalTo;
+
+    private RouteQuery(String routeNumber, String busType, String destination,
+                       int departureFrom, int departureTo, int arrivalFrom, int arrivalTo) {
+        this.routeNumber = routeNumber;
+        this.busType = busType;
+        this.destination = destination;
+        this.busTypeKey = busType == null ? null : RouteIndex.key(busType);
+        this.destinationKey = destination == null ? null : RouteIndex.key(destination);
+        this.departureFrom = departureFrom;
+        this.departureTo = departureTo;
+        this.arrivalFrom = arrivalFrom;
+        this.arrivalTo = arrivalTo;
+    }
+
+    public RouteQuery withRouteNumber(String value) {
+        return new RouteQuery(value, busType, destination, departureFrom, departureTo, arrivalFrom, arrivalTo);
+    }
+
+    public RouteQuery withBusType(String value) {
+        return new RouteQuery(routeNumber, value, destination, departureFrom, departureTo, arrivalFrom, arrivalTo);
+    }
+
+    public RouteQuery withDestination(String value) {
+        return new RouteQuery(routeNumber, busType, value, departureFrom, departureTo, arrivalFrom, arrivalTo);
+    }
+
+    public RouteQuery withDeparture(LocalTime from, LocalTime to) {
+        return new RouteQuery(routeNumber, busType, destination, BusRoute.toMinutes(from), BusRoute.toMinutes(to),
+                arrivalFrom, arrivalTo);
+    }
+
+    public RouteQuery withArrival(LocalTime from, LocalTime to) {
+        return new RouteQuery(routeNumber, busType, destination, departureFrom, departureTo,
+                BusRoute.toMinutes(from), BusRoute.toMinutes(to));
+    }
+
+    public String getRouteNumber() {
+        return routeNumber;
+    }
+
+    public String getBusType() {
+        return busType;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public boolean hasDeparture() {
+        return departureFrom >= 0;
+    }
+
+    public int getDepartureFrom() {
+        return departureFrom;
+    }
+
+    public int getDepartureTo() {
+        return departureTo;
+    }
+
+    public boolean hasArrival() {
+        return arrivalFrom >= 0;
+    }
+
+    public int getArrivalFrom() {
+        return arrivalFrom;
+    }
+
+    public int getArrivalTo() {
+        return arrivalTo;
+    }
+
+    public boolean matches(RouteTable table, int row) {
+        return (routeNumber == null || table.numberEquals(row, routeNumber, true))
+                && (busType == null || table.getDictionary().keyEquals(table.busTypeCode(row), busTypeKey))
+                && (destination == null || table.getDictionary().keyEquals(table.destinationCode(row), destinationKey))
+                && (departureFrom < 0 || within(table.departureMinute(row), departureFrom, departureTo))
+                && (arrivalFrom < 0 || within(table.arrivalMinute(row), arrivalFrom, arrivalTo));
+    }
+
+    static boolean within(int minute, int from, int to) {
+        return from <= to ? minute >= from && minute <= to : minute >= from || minute <= to;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (routeNumber != null) sb.append(" number=").append(routeNumber);
+        if (busType != null) sb.append(" type=").append(busType);
+        if (destination != null) sb.append(" destination=").append(destination);
+        if (departureFrom >= 0) {
+            sb.append(" departure=").append(BusRoute.fromMinutes(departureFrom))
+                    .append('-').append(BusRoute.fromMinutes(departureTo));
+        }
+        if (arrivalFrom >= 0) {
+            sb.append(" arrival=").append(BusRoute.fromMinutes(arrivalFrom))
+                    .append('-').append(BusRoute.fromMinutes(arrivalTo));
+        }
+        return sb.length() == 0 ? "all routes" : sb.substring(1);
+    }
+}
+
+//changes a bulk update makes to every route it selects: a new bus type or destination, and departure and
+//arrival set to a time or shifted by minutes around the clock; parts left unset keep their current value
+class RouteUpdate {
+    static final RouteUpdate NONE = new RouteUpdate(null, null, -1, 0, -1, 0);
+
+    //what one bulk update did
+    static class Result {
+        int matched;
+        int changed;
+        long nanos;
+
+        String summary() {
+            return "Updated " + changed + " of " + matched + " matching routes in " + nanos / 1_000_000 + " ms";
+        }
+    }
+
+    private final String busType;
+    private final String destination;
+    //minutes of the day, -1 when unset; the shift applies when the time is not set
+    private final int departure;
+    private final int departureShift;
+    private final int arrival;
+    private final int arrivalShift;
+
+    private RouteUpdate(String busType, String destination, int departure, int departureShift,
+                        int arrival, int arrivalShift) {
+        this.busType = busType;
+        this.destination = destination;
+        this.departure = departure;
+        this.departureShift = departureShift;
+        this.arrival = arrival;
+        this.arrivalShift = arrivalShift;
+    }
+
+    public RouteUpdate withBusType(String value) {
+        return new RouteUpdate(value, destination, departure, departureShift, arrival, arrivalShift);
+    }
+
+    public RouteUpdate withDestination(String value) {
+        return new RouteUpdate(busType, value, departure, departureShift, arrival, arrivalShift);
+    }
+
+    public RouteUpdate withDeparture(LocalTime time) {
+        return new RouteUpdate(busType, destination, BusRoute.toMinutes(time), 0, arrival, arrivalShift);
+    }
+
+    public RouteUpdate shiftDeparture(int minutes) {
+        return new RouteUpdate(busType, destination, -1, minutes, arrival, arrivalShift);
+    }
+
+    public RouteUpdate withArrival(LocalTime time) {
+        return new RouteUpdate(busType, destination, departure, departureShift, BusRoute.toMinutes(time), 0);
+    }
+
+    public RouteUpdate shiftArrival(int minutes) {
+        return new RouteUpdate(busType, destination, departure, departureShift, -1, minutes);
+    }
+
+    public boolean isEmpty() {
+        return busType == null && destination == null && departure < 0 && departureShift == 0
+                && arrival < 0 && arrivalShift == 0;
+    }
+
+    //the route of the row with the changes made, null if they leave it as it is
+    public BusRoute apply(RouteTable table, int row) {
+        int newDeparture = time(table.departureMinute(row), departure, departureShift);
+        int newArrival = time(table.arrivalMinute(row), arrival, arrivalShift);
+        StringDictionary dictionary = table.getDictionary();
+        boolean same = (busType == null || dictionary.valueEquals(table.busTypeCode(row), busType))
+                && (destination == null || dictionary.valueEquals(table.destinationCode(row), destination))
+                && newDeparture == table.departureMinute(row)
+                && newArrival == table.arrivalMinute(row);
+        if (same) return null;
+        return table.route(row).with(busType, destination,
+                BusRoute.fromMinutes(newDeparture), BusRoute.fromMinutes(newArrival));
+    }
+
+    private static int time(int minute, int set, int shift) {
+        return set >= 0 ? set : Math.floorMod(minute + shift, 24 * 60);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (busType != null) sb.append(" type=").append(busType);
+        if (destination != null) sb.append(" destination=").append(destination);
+        appendTime(sb, "departure", departure, departureShift);
+        appendTime(sb, "arrival", arrival, arrivalShift);
+        return sb.length() == 0 ? "no changes" : sb.substring(1);
+    }
+
+    private static void appendTime(StringBuilder sb, String name, int set, int shift) {
+        if (set >= 0) {
+            sb.append(' ').append(name).append('=').append(BusRoute.fromMinutes(set));
+        } else if (shift != 0) {
+            sb.append(' ').append(name).append('=').append(shift > 0 ? "+" : "").append(shift);
+        }
+    }
+}
+
+//immutable case-insensitive secondary indexes over the rows of a route table,
+//add and remove return a new index sharing the untouched parts
+class RouteIndex {
+    private final RouteTable table;
+    private final NumberIndex byRouteNumber;
+    private final CodeIndex byBusType;
+    private final CodeIndex byDestination;
+    //timeline of each destination: its rows ordered by (departure minute, id)
+    private final CodeIndex departuresByDestination;
+    //distinct keys of the two text columns, for ranked prefix and typo-tolerant search
+    private final TermIndex busTypeTerms;
+    private final TermIndex destinationTerms;
+    //rows ordered by (arrival minute, id) and by (departure minute, id)
+    private final SortedRouteView byArrival;
+    private final SortedRouteView byDeparture;
+    //sorted listings, one per sort key of the sort menu
+    private final SortedRouteView sortedByRouteNumber;
+    private final SortedRouteView sortedByBusType;
+    private final SortedRouteView sortedByDestination;
+
+    public RouteIndex(RouteTable table) {
+        this(table, new NumberIndex(table),
+                new CodeIndex(table, table::busTypeCode),
+                new CodeIndex(table, table::destinationCode),
+                new CodeIndex(table, table::destinationCode, thenById(table, (a, b) ->
+                        Integer.compare(table.departureMinute(a), table.departureMinute(b)))),
+                new TermIndex(), new TermIndex(),
+                new SortedRouteView(thenById(table, (a, b) ->
+                        Integer.compare(table.arrivalMinute(a), table.arrivalMinute(b)))),
+                new SortedRouteView(thenById(table, (a, b) ->
+                        Integer.compare(table.departureMinute(a), table.departureMinute(b)))),
+                new SortedRouteView(thenById(table, table::compareNumbers)),
+                new SortedRouteView(thenById(table, table::compareBusTypes)),
+                new SortedRouteView(thenById(table, table::compareDestinations)));
+    }
+
+    private RouteIndex(RouteTable table, NumberIndex byRouteNumber, CodeIndex byBusType, CodeIndex byDestination,
+                       CodeIndex departuresByDestination, TermIndex busTypeTerms, TermIndex destinationTerms, SortedRouteView byArrival,
+                       SortedRouteView byDeparture, SortedRouteView sortedByRouteNumber, SortedRouteView sortedByBusType,
+                       SortedRouteView sortedByDestination) {
+        this.table = table;
+        this.byRouteNumber = byRouteNumber;
+        this.byBusType = byBusType;
+        this.byDestination = byDestination;
+        this.departuresByDestination = departuresByDestination;
+        this.busTypeTerms = busTypeTerms;
+        this.destinationTerms = destinationTerms;
+        this.byArrival = byArrival;
+        this.byDeparture = byDeparture;
+        this.sortedByRouteNumber = sortedByRouteNumber;
+        this.sortedByBusType = sortedByBusType;
+        this.sortedByDestination = sortedByDestination;
+    }
+
+    static String key(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    //ties are broken by id, which keeps equal keys in the order routes were created
+    private static RowOrder thenById(RouteTable table, RowOrder order) {
+        return (a, b) -> {
+            int c = order.compare(a, b);
+            return c != 0 ? c : Long.compare(table.id(a), table.id(b));
+        };
+    }
+
+    public RouteTable getTable() {
+        return table;
+    }
+
+    public int size() {
+        return sortedByRouteNumber.rows().size();
+    }
+
+    //indexes the current rows of the table from scratch
+    public RouteIndex rebuild() {
+        int[] live = table.liveRows();
+        CodeIndex busTypes = byBusType.rebuild(live);
+        CodeIndex destinations = byDestination.rebuild(live);
+        SortedRouteView departures = byDeparture.rebuild(live);
+        return new RouteIndex(table, byRouteNumber.rebuild(live), busTypes, destinations,
+                departuresByDestination.rebuild(departures.rows().toArray()),
+                busTypeTerms.rebuild(busTypes.keys()), destinationTerms.rebuild(destinations.keys()),
+                byArrival.rebuild(live), departures, sortedByRouteNumber.rebuild(live),
+                sortedByBusType.rebuild(live), sortedByDestination.rebuild(live));
+    }
+
+    public RouteIndex add(int row) {
+        CodeIndex busTypes = byBusType.add(row);
+        CodeIndex destinations = byDestination.add(row);
+        return new RouteIndex(table, byRouteNumber.add(row), busTypes, destinations, departuresByDestination.add(row),
+                addTerm(busTypeTerms, busTypes, row), addTerm(destinationTerms, destinations, row),
+                byArrival.add(row), byDeparture.add(row), sortedByRouteNumber.add(row), sortedByBusType.add(row),
+                sortedByDestination.add(row));
+    }
+
+    public RouteIndex remove(int row) {
+        CodeIndex busTypes = byBusType.remove(row);
+        CodeIndex destinations = byDestination.remove(row);
+        return new RouteIndex(table, byRouteNumber.remove(row), busTypes, destinations,
+                departuresByDestination.remove(row),
+                removeTerm(busTypeTerms, busTypes, row), removeTerm(destinationTerms, destinations, row),
+                byArrival.remove(row), byDeparture.remove(row), sortedByRouteNumber.remove(row),
+                sortedByBusType.remove(row), sortedByDestination.remove(row));
+    }
+
+    //the term index only changes when a key gets its first row or loses its last one
+    private static TermIndex addTerm(TermIndex terms, CodeIndex codes, int row) {
+        String key = codes.key(row);
+        return codes.count(key) == 1 ? terms.add(key) : terms;
+    }
+
+    private static TermIndex removeTerm(TermIndex terms, CodeIndex codes, int row) {
+        String key = codes.key(row);
+        return codes.count(key) == 0 ? terms.remove(key) : terms;
+    }
+
+    public List<BusRoute> findByRouteNumber(String routeNumber) {
+        return new RowList(table, byRouteNumber.find(routeNumber));
+    }
+
+    //current row of the route with exactly this number, -1 if there is none
+    public int findRow(String routeNumber) {
+        for (int row : byRouteNumber.find(routeNumber)) {
+            if (table.numberEquals(row, routeNumber, false)) return row;
+        }
+        return -1;
+    }
+
+    public List<BusRoute> findByBusType(String busType) {
+        return new RowList(table, byBusType.find(busType));
+    }
+
+    public List<BusRoute> findByDestination(String destination) {
+        return new RowList(table, byDestination.find(destination));
+    }
+
+    //routes whose bus type best matches the text, see TermIndex.match
+    public List<BusRoute> matchBusType(String text, int limit) {
+        return matched(byBusType, busTypeTerms.match(text, byBusType::count, limit));
+    }
+
+    public List<BusRoute> matchDestination(String text, int limit) {
+        return matched(byDestination, destinationTerms.match(text, byDestination::count, limit));
+    }
+
+    //rows of each key one after another, best key first
+    private RowList matched(CodeIndex codes, List<String> keys) {
+        IntSequence[] parts = new IntSequence[keys.size()];
+        int[] ends = new int[keys.size()];
+        int end = 0;
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = codes.find(keys.get(i));
+            end += parts[i].size();
+            ends[i] = end;
+        }
+        int size = end;
+        return new RowList(table, new IntSequence() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public int get(int index) {
+                int part = 0;
+                while (ends[part] <= index) part++;
+                return parts[part].get(index - (part == 0 ? 0 : ends[part - 1]));
+            }
+        });
+    }
+
+    public List<BusRoute> sortedByRouteNumber() {
+        return new RowList(table, sortedByRouteNumber.rows());
+    }
+
+    //rows of sortedByRouteNumber(), for readers that work on the table columns
+    public IntSequence rowsByRouteNumber() {
+        return sortedByRouteNumber.rows();
+    }
+
+    public List<BusRoute> sortedByBusType() {
+        return new RowList(table, sortedByBusType.rows());
+    }
+
+    public List<BusRoute> sortedByDestination() {
+        return new RowList(table, sortedByDestination.rows());
+    }
+
+    //routes arriving from..to inclusive, in arrival order; from > to means the range wraps past midnight
+    public List<BusRoute> findArrivingBetween(LocalTime from, LocalTime to) {
+        return new RowList(table, range(byArrival, table::arrivalMinute,
+                BusRoute.toMinutes(from), BusRoute.toMinutes(to)));
+    }
+
+    //the next count departures to the destination at or after time, wrapping past midnight;
+    //a hash lookup and a binary search, then the rows are read off the destination's timeline
+    public List<BusRoute> nextDepartures(String destination, LocalTime time, int count) {
+        IntSequence timeline = departuresByDestination.find(destination);
+        int size = timeline.size();
+        int minute = BusRoute.toMinutes(time);
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table.departureMinute(timeline.get(mid)) < minute) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int start = lo;
+        int n = Math.min(count, size);
+        return new RowList(table, new IntSequence() {
+            @Override
+            public int size() {
+                return n;
+            }
+
+            @Override
+            public int get(int index) {
+                return timeline.get((start + index) % size);
+            }
+        });
+    }
+
+    //which index a query reads and the rows it gets from it, the other conditions are checked on those rows only
+    static class Plan {
+        final String access;
+        final IntSequence candidates;
+        //candidates already come in route number order
+        final boolean ordered;
+
+        Plan(String access, IntSequence candidates, boolean ordered) {
+            this.access = access;
+            this.candidates = candidates;
+            this.ordered = ordered;
+        }
+    }
+
+    //picks the condition with the fewest candidate rows; every estimate is exact and costs a lookup or two
+    public Plan plan(RouteQuery query) {
+        Plan best = new Plan("full scan", sortedByRouteNumber.rows(), true);
+        if (query.getRouteNumber() != null) {
+            best = cheaper(best, new Plan("route number index", IntSequence.of(byRouteNumber.find(query.getRouteNumber())), false));
+        }
+        if (query.getBusType() != null) {
+            best = cheaper(best, new Plan("bus type index", byBusType.find(query.getBusType()), false));
+        }
+        if (query.getDestination() != null) {
+            best = cheaper(best, new Plan("destination index", byDestination.find(query.getDestination()), false));
+        }
+        if (query.hasDeparture()) {
+            best = cheaper(best, new Plan("departure time index", range(byDeparture, table::departureMinute,
+                    query.getDepartureFrom(), query.getDepartureTo()), false));
+        }
+        if (query.hasArrival()) {
+            best = cheaper(best, new Plan("arrival time index", range(byArrival, table::arrivalMinute,
+                    query.getArrivalFrom(), query.getArrivalTo()), false));
+        }
+        return best;
+    }
+
+    //routes matching every condition of the query, in route number order
+    public List<BusRoute> query(RouteQuery query) {
+        return new RowList(table, queryRows(query));
+    }
+
+    //rows of query(query); the candidates of a large plan are checked on all cores
+    public int[] queryRows(RouteQuery query) {
+        Plan plan = plan(query);
+        int[] rows = ParallelRows.filter(plan.candidates, row -> query.matches(table, row));
+        if (!plan.ordered) {
+            sortedByRouteNumber.sort(rows, rows.length);
+        }
+        return rows;
+    }
+
+    private static Plan cheaper(Plan a, Plan b) {
+        return b.candidates.size() < a.candidates.size() ? b : a;
+    }
+
+    //rows of a minute-ordered view with minutes from..to; from > to wraps past midnight
+    private static IntSequence range(SortedRouteView view, IntUnaryOperator minute, int fromMinute, int toMinute) {
+        ChunkedIntList rows = view.rows();
+        int start = view.lowerBound(minute, fromMinute);
+        int end = view.lowerBound(minute, toMinute + 1);
+        //one range, or the tail of the day followed by its head
+        int tail = fromMinute <= toMinute ? end - start : rows.size() - start;
+        int head = fromMinute <= toMinute ? 0 : end;
+        return new IntSequence() {
+            @Override
+            public int size() {
+                return tail + head;
+            }
+
+            @Override
+            public int get(int index) {
+                return index < tail ? rows.get(start + index) : rows.get(index - tail);
+            }
+        };
+    }
+}
+
+//append-only file of length-prefixed records, each protected by a CRC32;
+//a writer thread commits them in groups, callers only wait when they ask for it with flush()
+class AppendLog implements Closeable {
+    private static final int MAX_RECORD = 1 << 20;
+
+    private final File file;
+    //how long the writer waits for more records, so a burst of changes costs one write and one fsync
+    private final long groupCommitNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    //signalled when records are queued, written, or someone waits for them
+    private final Condition changed = lock.newCondition();
+    //everything below is guarded by lock
+    private FileOutputStream out;
+    private long size;
+    //length of the part of the file that is written and synced
+    private long syncedSize;
+    private ByteArrayOutputStream queued = new ByteArrayOutputStream();
+    //records handed in and records on disk, counted since open
+    private long appended;
+    private long synced;
+    private int flushing;
+    private boolean closing;
+    //failure of the writer thread; the log is broken from then on and every later call reports it
+    private IOException failure;
+    private Thread writer;
+
+    public AppendLog(File file, long groupCommitMillis) {
+        this.file = file;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //feeds every intact record to the handler and returns the length of the intact part
+    public static long read(File file, Consumer<byte[]> handler) throws IOException {
+        long good = 0;
+        if (!file.exists()) return good;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] payload;
+                int crc;
+                try {
+                    int len = in.readInt();
+                    if (len < 0 || len > MAX_RECORD) break;
+                    payload = new byte[len];
+                    in.readFully(payload);
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int) check.getValue() != crc) break;
+                handler.accept(payload);
+                good += 8 + payload.length;
+            }
+        }
+        return good;
+    }
+
+    //replays the log, cuts off a record torn by a crash and opens the file for appending
+    public void open(Consumer<byte[]> handler) throws IOException {
+        long good = read(file, handler);
+        if (file.exists() && file.length() > good) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+        }
+        lock.lock();
+        try {
+            out = new FileOutputStream(file, true);
+            size = good;
+            syncedSize = good;
+            writer = new Thread(this::writeLoop, file.getName() + "-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //queues the record and returns at once, the writer thread makes it durable
+    public void append(byte[] payload) throws IOException {
+        CRC32 check = new CRC32();
+        check.update(payload);
+        lock.lock();
+        try {
+            reportFailure();
+            DataOutputStream data = new DataOutputStream(queued);
+            data.writeInt(payload.length);
+            data.write(payload);
+            data.writeInt((int) check.getValue());
+            size += 8 + payload.length;
+            appended++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //waits until every record appended so far is on disk
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            flushing++;
+            changed.signalAll();
+            while (synced < appended && failure == null && writer != null && writer.isAlive()) {
+                changed.awaitUninterruptibly();
+            }
+            flushing--;
+            reportFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //moves the current content to target and starts an empty log
+    public void rotate(File target) throws IOException {
+        lock.lock();
+        try {
+            flush();
+            out.close();
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            out = new FileOutputStream(file);
+            size = 0;
+            syncedSize = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void truncate() throws IOException {
+        lock.lock();
+        try {
+            flush();
+            out.close();
+            out = new FileOutputStream(file);
+            size = 0;
+            syncedSize = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        IOException error = null;
+        lock.lock();
+        try {
+            if (out == null) return;
+            try {
+                flush();
+            } catch (IOException e) {
+                //a broken log is still closed, the error is reported once the file is released
+                error = e;
+            }
+            closing = true;
+            changed.signalAll();
+            t = writer;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            out.close();
+            out = null;
+        } finally {
+            lock.unlock();
+        }
+        if (error != null) throw error;
+    }
+
+    private void reportFailure() throws IOException {
+        if (failure != null) throw failure;
+    }
+
+    //takes whatever has been queued, writes it with one write and one fsync, and wakes those waiting for it
+    private void writeLoop() {
+        lock.lock();
+        try {
+            while (true) {
+                while (queued.size() == 0 && !closing) {
+                    changed.awaitUninterruptibly();
+                }
+                if (queued.size() == 0) return;
+                long wait = groupCommitNanos;
+                while (wait > 0 && flushing == 0 && !closing) {
+                    wait = changed.awaitNanos(wait);
+                }
+                ByteArrayOutputStream batch = queued;
+                queued = new ByteArrayOutputStream();
+                long upTo = appended;
+                FileOutputStream target = out;
+                //appends go on while the disk works; rotate and truncate wait in flush() for this batch
+                lock.unlock();
+                IOException error = null;
+                try {
+                    //one write per batch, so a crash can only tear its end, which open() cuts off
+                    batch.writeTo(target);
+                    target.getFD().sync();
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                if (error != null) {
+                    //the batch is not on disk: cut its torn bytes off so that nothing is written after them,
+                    //and fail everyone waiting and everyone after, since changes already shown can no longer be kept
+                    try {
+                        target.getChannel().truncate(syncedSize);
+                    } catch (IOException e) {
+                        error.addSuppressed(e);
+                    }
+                    failure = new IOException("writing " + file.getName() + " failed, changes since the last "
+                            + "successful write are lost: " + error.getMessage(), error);
+                    queued = new ByteArrayOutputStream();
+                    changed.signalAll();
+                    return;
+                }
+                syncedSize += batch.size();
+                synced = upTo;
+                changed.signalAll();
+            }
+        } catch (InterruptedException e) {
+            //only daemon shutdown interrupts the writer
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+//versioned binary route file: header, string dictionary, fixed-width records, CRC32 trailer
+class RouteFileFormat {
+    static final int MAGIC = 0x42525446; //"BRTF"
+    static final short VERSION = 1;
+    //magic, version, flags, route count, dictionary size, dictionary bytes, last journal seq
+    static final int HEADER_BYTES = 4 + 2 + 2 + 4 + 4 + 4 + 8;
+    //id, route number, bus type, destination, departure, arrival
+    static final int RECORD_BYTES = 8 + 4 + 4 + 4 + 2 + 2;
+    //first bytes of an ObjectOutputStream, i.e. a file written before this format
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    //routes read from a file together with the last journal sequence they include
+    static class Contents {
+        final List<BusRoute> routes;
+        final long lastSeq;
+
+        Contents(List<BusRoute> routes, long lastSeq) {
+            this.routes = routes;
+            this.lastSeq = lastSeq;
+        }
+    }
+
+    static boolean isLegacy(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readUnsignedShort() == LEGACY_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    //reads through a mapping of the file, which is released as soon as the routes are decoded:
+    //left to the collector it would stay open, and on Windows a mapped file cannot be replaced by the next snapshot
+    public static Contents read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + 4) {
+                throw new IOException("route file is too short");
+            }
+            if (size >= Integer.MAX_VALUE) {
+                throw new IOException("route file of " + size + " bytes is too large, the limit is 2 GB");
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                return decode(buf, size);
+            } finally {
+                unmap(buf);
+            }
+        }
+    }
+
+    //nothing read here may keep a reference into buf, the mapping is gone once read() returns
+    private static Contents decode(ByteBuffer buf, long size) throws IOException {
+        CRC32 check = new CRC32();
+        check.update(buf.duplicate().limit((int) size - 4));
+        if ((int) check.getValue() != buf.getInt((int) size - 4)) {
+            throw new IOException("route file checksum mismatch");
+        }
+
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("not a route file");
+        }
+        short version = buf.getShort();
+        if (version != VERSION) {
+            throw new IOException("unsupported route file version " + version);
+        }
+        buf.getShort(); //flags, none defined yet
+        int routeCount = buf.getInt();
+        int dictSize = buf.getInt();
+        int dictBytes = buf.getInt();
+        long lastSeq = buf.getLong();
+        if ((long) HEADER_BYTES + dictBytes + (long) routeCount * RECORD_BYTES + 4 != size) {
+            throw new IOException("route file size does not match its header");
+        }
+
+        //every distinct string is decoded once and shared by all routes using it
+        String[] dict = new String[dictSize];
+        byte[] scratch = new byte[256];
+        for (int i = 0; i < dictSize; i++) {
+            int len = buf.getShort() & 0xFFFF;
+            if (scratch.length < len) scratch = new byte[len];
+            buf.get(scratch, 0, len);
+            dict[i] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        List<BusRoute> routes = new ArrayList<>(routeCount);
+        for (int i = 0; i < routeCount; i++) {
+            long id = buf.getLong();
+            String routeNumber = dict[buf.getInt()];
+            String busType = dict[buf.getInt()];
+            String destination = dict[buf.getInt()];
+            LocalTime departure = BusRoute.fromMinutes(buf.getShort());
+            LocalTime arrival = BusRoute.fromMinutes(buf.getShort());
+            routes.add(new BusRoute(id, routeNumber, busType, destination, departure, arrival));
+        }
+        return new Contents(routes, lastSeq);
+    }
+
+    //releases the mapping now rather than when the buffer is collected; where the runtime does not allow it
+    //the mapping is left to the collector as before
+    private static void unmap(MappedByteBuffer buf) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buf);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //not released early
+        }
+    }
+
+    //reads a file written with ObjectOutputStream by older versions
+    @SuppressWarnings("unchecked")
+    public static Contents readLegacy(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            List<BusRoute> routes = (List<BusRoute>) ois.readObject();
+            long lastSeq = 0;
+            try {
+                lastSeq = ois.readLong();
+            } catch (EOFException e) {
+                //written before the journal, nothing was logged against it
+            }
+            return new Contents(routes, lastSeq);
+        }
+    }
+
+    public static void write(File file, Collection<BusRoute> routes, long lastSeq) throws IOException {
+        Map<String, Integer> codes = new HashMap<>();
+        List<byte[]> dict = new ArrayList<>();
+        long dictBytes = 0;
+        int[] refs = new int[routes.size() * 3];
+        int n = 0;
+        for (BusRoute r : routes) {
+            for (String value : new String[] {r.getRouteNumber(), r.getBusType(), r.getDestination()}) {
+                Integer code = codes.get(value);
+                if (code == null) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > 0xFFFF) {
+                        throw new IOException("value is too long to store: " + value.substring(0, 32) + "...");
+                    }
+                    code = dict.size();
+                    codes.put(value, code);
+                    dict.add(bytes);
+                    dictBytes += 2 + bytes.length;
+                }
+                refs[n++] = code;
+            }
+        }
+        long size = HEADER_BYTES + dictBytes + (long) routes.size() * RECORD_BYTES + 4;
+        if (size >= Integer.MAX_VALUE) {
+            throw new IOException("routes need " + size + " bytes, more than the 2 GB a route file can hold");
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(routes.size());
+            out.writeInt(dict.size());
+            out.writeInt((int) dictBytes);
+            out.writeLong(lastSeq);
+            for (byte[] bytes : dict) {
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            n = 0;
+            for (BusRoute r : routes) {
+                out.writeLong(r.getId());
+                out.writeInt(refs[n++]);
+                out.writeInt(refs[n++]);
+                out.writeInt(refs[n++]);
+                out.writeShort(BusRoute.toMinutes(r.getDepartureTime()));
+                out.writeShort(BusRoute.toMinutes(r.getArrivalTime()));
+            }
+            out.flush();
+            //the checksum itself is not part of the checked bytes
+            new DataOutputStream(fos).writeInt((int) checked.getChecksum().getValue());
+            fos.getFD().sync();
+        }
+    }
+}
+
+//snapshot file plus a journal of the route changes made since it was written
+class RouteJournal implements Closeable {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final File snapshotFile;
+    private final AppendLog log;
+    private final long compactThreshold;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "route-journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private Future<?> compaction;
+    private long seq;
+    private long nextId = 1;
+
+    public RouteJournal(File snapshotFile, File logFile, long compactThreshold, long groupCommitMillis) {
+        this.snapshotFile = snapshotFile;
+        this.log = new AppendLog(logFile, groupCommitMillis);
+        this.compactThreshold = compactThreshold;
+    }
+
+    //first id no route of this journal has used
+    public long getNextId() {
+        return nextId;
+    }
+
+    //reads the snapshot and replays rotated and live logs on top of it
+    public List<BusRoute> load() throws IOException, ClassNotFoundException {
+        List<BusRoute> snapshot = new ArrayList<>();
+        long snapshotSeq = 0;
+        boolean legacy = false;
+        if (snapshotFile.exists()) {
+            legacy = RouteFileFormat.isLegacy(snapshotFile);
+            RouteFileFormat.Contents contents = legacy
+                    ? RouteFileFormat.readLegacy(snapshotFile)
+                    : RouteFileFormat.read(snapshotFile);
+            snapshot = contents.routes;
+            snapshotSeq = contents.lastSeq;
+        }
+
+        for (BusRoute r : snapshot) {
+            nextId = Math.max(nextId, r.getId() + 1);
+        }
+        LinkedHashMap<Long, BusRoute> byId = new LinkedHashMap<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            BusRoute r = snapshot.get(i);
+            if (r.getId() == 0) {
+                //deterministic, so log records written against this snapshot still match
+                r = r.withId(nextId++);
+                snapshot.set(i, r);
+            }
+            byId.put(r.getId(), r);
+        }
+        if (legacy) {
+            migrate(snapshot, snapshotSeq);
+        }
+
+        seq = snapshotSeq;
+        long minSeq = snapshotSeq;
+        Consumer<byte[]> replay = payload -> apply(byId, payload, minSeq);
+        for (File rotated : rotatedLogs()) {
+            AppendLog.read(rotated, replay);
+        }
+        log.open(replay);
+        return new ArrayList<>(byId.values());
+    }
+
+    //opens the live log without replaying, used when the snapshot could not be read
+    public void openLog() throws IOException {
+        log.open(payload -> { });
+    }
+
+    public void put(BusRoute route) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(PUT);
+        out.writeLong(++seq);
+        out.writeLong(route.getId());
+        out.writeUTF(route.getRouteNumber());
+        out.writeUTF(route.getBusType());
+        out.writeUTF(route.getDestination());
+        out.writeShort(BusRoute.toMinutes(route.getDepartureTime()));
+        out.writeShort(BusRoute.toMinutes(route.getArrivalTime()));
+        log.append(buf.toByteArray());
+    }
+
+    public void delete(BusRoute route) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(24);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(DELETE);
+        out.writeLong(++seq);
+        out.writeLong(route.getId());
+        log.append(buf.toByteArray());
+    }
+
+    //once the log is big enough, folds it into a new snapshot on the compactor thread
+    public void compactIfNeeded(Supplier<Collection<BusRoute>> current) throws IOException {
+        if (log.size() < compactThreshold) return;
+        if (compaction != null && !compaction.isDone()) return;
+        //the supplier hands over a list that does not change while the writer goes on
+        writeSnapshot(current.get(), () -> { });
+    }
+
+    //hands the log written so far over to the compactor thread, which writes a full snapshot in its place;
+    //returns at once, written runs once the snapshot is on disk
+    public void writeSnapshot(Collection<BusRoute> routes, Runnable written) throws IOException {
+        long upTo = seq;
+        //an empty log has nothing to hand over, and its name could be taken by a rotation still waiting
+        if (log.size() > 0) {
+            log.rotate(rotatedLog(upTo));
+        }
+        //one thread, so snapshots land in the order they were asked for
+        compaction = compactor.submit(() -> {
+            try {
+                writeSnapshotFile(routes, upTo);
+                deleteRotatedLogs(upTo);
+                written.run();
+            } catch (IOException e) {
+                //rotated logs stay on disk and are replayed next time
+                System.out.println("Error with writing routes snapshot: " + e.getMessage());
+            }
+        });
+    }
+
+    //waits until every change and snapshot asked for so far is on disk
+    public void flush() throws IOException {
+        log.flush();
+        awaitCompaction();
+    }
+
+    @Override
+    public void close() throws IOException {
+        awaitCompaction();
+        compactor.shutdown();
+        log.close();
+    }
+
+    //closes the journal and sets its files aside once its routes are stored elsewhere; the snapshot is kept as backup
+    public void retire(File backup) throws IOException {
+        close();
+        if (snapshotFile.exists()) {
+            Files.move(snapshotFile.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (File rotated : rotatedLogs()) {
+            Files.deleteIfExists(rotated.toPath());
+        }
+        Files.deleteIfExists(log.getFile().toPath());
+    }
+
+    private void awaitCompaction() {
+        if (compaction == null) return;
+        try {
+            compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Error with writing routes snapshot: " + e.getCause().getMessage());
+        }
+    }
+
+    private void apply(Map<Long, BusRoute> byId, byte[] payload, long minSeq) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte op = in.readByte();
+            long recordSeq = in.readLong();
+            long id = in.readLong();
+            seq = Math.max(seq, recordSeq);
+            nextId = Math.max(nextId, id + 1);
+            if (recordSeq <= minSeq) return;
+            if (op == PUT) {
+                byId.put(id, new BusRoute(id, in.readUTF(), in.readUTF(), in.readUTF(),
+                        BusRoute.fromMinutes(in.readShort()), BusRoute.fromMinutes(in.readShort())));
+            } else if (op == DELETE) {
+                byId.remove(id);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //one-shot conversion of a serialized snapshot, the old file is kept next to the new one
+    private void migrate(List<BusRoute> routes, long snapshotSeq) throws IOException {
+        File backup = new File(snapshotFile.getPath() + ".legacy");
+        Files.copy(snapshotFile.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        writeSnapshotFile(routes, snapshotSeq);
+        System.out.println("Routes data converted to the binary format, old file saved as " + backup.getName());
+    }
+
+    private void writeSnapshotFile(Collection<BusRoute> routes, long upTo) throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        RouteFileFormat.write(tmp, routes, upTo);
+        try {
+            Files.move(tmp.toPath(), snapshotFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private File rotatedLog(long upTo) {
+        return new File(log.getFile().getPath() + "." + upTo);
+    }
+
+    //logs handed over to a compaction that has not finished, oldest first
+    private List<File> rotatedLogs() {
+        File dir = log.getFile().getAbsoluteFile().getParentFile();
+        String prefix = log.getFile().getName() + ".";
+        List<File> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return result;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+")) {
+                result.add(f);
+            }
+        }
+        result.sort(Comparator.comparingLong(f -> Long.parseLong(f.getName().substring(prefix.length()))));
+        return result;
+    }
+
+    private void deleteRotatedLogs(long upTo) throws IOException {
+        String prefix = log.getFile().getName() + ".";
+        for (File f : rotatedLogs()) {
+            if (Long.parseLong(f.getName().substring(prefix.length())) <= upTo) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+    }
+}
+
+//routes split into shard files by a hash of the route number, each shard a journal of its own:
+//shards load in parallel and a change is written to the shard of its route only
+class ShardedRouteJournal implements Closeable {
+    static final int SHARDS = 16;
+
+    //files of the single journal used before sharding, read once and set aside
+    private final File snapshotFile;
+    private final File logFile;
+    private final RouteJournal[] shards = new RouteJournal[SHARDS];
+    private long nextId = 1;
+
+    //compactThreshold is the log size of the whole table, each shard compacts at its part of it
+    public ShardedRouteJournal(File snapshotFile, File logFile, long compactThreshold, long groupCommitMillis) {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        for (int k = 0; k < SHARDS; k++) {
+            shards[k] = new RouteJournal(shardFile(snapshotFile, k), shardFile(logFile, k),
+                    Math.max(1, compactThreshold / SHARDS), groupCommitMillis);
+        }
+    }
+
+    //route numbers equal ignoring case land in the same shard
+    static int shardOf(int numberHash) {
+        return (numberHash ^ (numberHash >>> 16)) & (SHARDS - 1);
+    }
+
+    static int shardOf(BusRoute route) {
+        return shardOf(RouteTable.numberHash(route.getRouteNumber()));
+    }
+
+    //bus_routes.dat -> bus_routes.3.dat
+    private static File shardFile(File file, int shard) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String shardName = dot < 0 ? name + "." + shard : name.substring(0, dot) + "." + shard + name.substring(dot);
+        return new File(file.getAbsoluteFile().getParentFile(), shardName);
+    }
+
+    //true if routes were stored before, sharded or not
+    public boolean exists() {
+        return snapshotFile.exists() || logFile.exists() || shardFilesExist();
+    }
+
+    private boolean shardFilesExist() {
+        for (int k = 0; k < SHARDS; k++) {
+            if (shardFile(snapshotFile, k).exists() || shardFile(logFile, k).exists()) return true;
+        }
+        return false;
+    }
+
+    public long nextId() {
+        return nextId++;
+    }
+
+    //reads every shard on its own thread; routes of the unsharded files are split into shards first
+    public List<BusRoute> load() throws IOException, ClassNotFoundException {
+        List<BusRoute> unsharded = null;
+        RouteJournal single = null;
+        if (snapshotFile.exists() || logFile.exists()) {
+            single = new RouteJournal(snapshotFile, logFile, Long.MAX_VALUE, 0);
+            if (!snapshotFile.exists() && shardFilesExist()) {
+                //a split that set the snapshot aside was cut short before deleting the old logs;
+                //the shards already hold their changes, a split of the logs alone would overwrite them
+                single.retire(new File(snapshotFile.getPath() + ".unsharded"));
+                single = null;
+            } else {
+                unsharded = single.load();
+                nextId = single.getNextId();
+            }
+        }
+
+        List<ForkJoinTask<List<BusRoute>>> parts = new ArrayList<>(SHARDS);
+        for (RouteJournal shard : shards) {
+            parts.add(ForkJoinPool.commonPool().submit(shard::load));
+        }
+        List<BusRoute> routes = new ArrayList<>();
+        for (int k = 0; k < SHARDS; k++) {
+            try {
+                routes.addAll(parts.get(k).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("loading routes was interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                if (e.getCause() instanceof ClassNotFoundException) throw (ClassNotFoundException) e.getCause();
+                throw new IOException("route shard " + k + " failed: " + e.getCause().getMessage(), e.getCause());
+            }
+            nextId = Math.max(nextId, shards[k].getNextId());
+        }
+        if (unsharded == null) {
+            return routes;
+        }
+
+        //a split that was cut short left nothing but snapshots of the unsharded routes, written again here
+        List<List<BusRoute>> split = new ArrayList<>(SHARDS);
+        for (int k = 0; k < SHARDS; k++) {
+            split.add(new ArrayList<>());
+        }
+        for (BusRoute r : unsharded) {
+            split.get(shardOf(r)).add(r);
+        }
+        for (int k = 0; k < SHARDS; k++) {
+            shards[k].writeSnapshot(split.get(k), () -> { });
+        }
+        flush();
+        File backup = new File(snapshotFile.getPath() + ".unsharded");
+        single.retire(backup);
+        System.out.println("Routes data split into " + SHARDS + " shard files, old file saved as " + backup.getName());
+        return unsharded;
+    }
+
+    //opens the live logs without replaying, used when the stored routes could not be read
+    public void openLog() throws IOException {
+        for (RouteJournal shard : shards) {
+            shard.openLog();
+        }
+    }
+
+    public void put(BusRoute route) throws IOException {
+        shards[shardOf(route)].put(route);
+    }
+
+    public void delete(BusRoute route) throws IOException {
+        shards[shardOf(route)].delete(route);
+    }
+
+    //compacts the shard of the changed route once its log is big enough, routesOf gives the routes of a shard
+    public void compactIfNeeded(BusRoute changed, IntFunction<Collection<BusRoute>> routesOf) throws IOException {
+        int k = shardOf(changed);
+        shards[k].compactIfNeeded(() -> routesOf.apply(k));
+    }
+
+    //snapshots of the given shards, written in parallel on their compactor threads;
+    //returns at once, written runs once all of them are on disk
+    public void writeSnapshot(BitSet which, IntFunction<Collection<BusRoute>> routesOf, Runnable written)
+            throws IOException {
+        AtomicInteger remaining = new AtomicInteger(which.cardinality());
+        if (remaining.get() == 0) {
+            written.run();
+            return;
+        }
+        for (int k = which.nextSetBit(0); k >= 0; k = which.nextSetBit(k + 1)) {
+            shards[k].writeSnapshot(routesOf.apply(k), () -> {
+                if (remaining.decrementAndGet() == 0) written.run();
+            });
+        }
+    }
+
+    //waits until every change and snapshot asked for so far is on disk
+    public void flush() throws IOException {
+        for (RouteJournal shard : shards) {
+            shard.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (RouteJournal shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
+
+//one published version of the route table with its indexes, never changes once published
+class RouteSnapshot {
+    private final long version;
+    private final RouteIndex index;
+
+    RouteSnapshot(long version, RouteIndex index) {
+        this.version = version;
+        this.index = index;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public RouteIndex getIndex() {
+        return index;
+    }
+
+    public boolean isEmpty() {
+        return index.size() == 0;
+    }
+
+    //first route with exactly this number, null if there is none
+    public BusRoute find(String routeNumber) {
+        int row = index.findRow(routeNumber);
+        return row < 0 ? null : index.getTable().route(row);
+    }
+
+    //routes arriving in the given number of hours up to time, wraps past midnight
+    public List<BusRoute> findArrivingBefore(LocalTime time, int hours) {
+        return index.findArrivingBetween(time.minusHours(hours), time);
+    }
+}
+
+//bounded LRU cache of query results of the current snapshot; a change drops exactly the entries
+//whose result holds the changed route before or after the change
+class QueryCache {
+    //a ranked match is checked against each changed value of its column, beyond this many it is dropped unchecked
+    private static final int MATCH_CHECKS = 256;
+
+    private static class Entry {
+        final Operation op;
+        final String argument;
+        final List<BusRoute> result;
+        //minutes of the day the result covers, for arrival filters only
+        final int fromMinute;
+        final int toMinute;
+
+        Entry(Operation op, String argument, List<BusRoute> result, int fromMinute, int toMinute) {
+            this.op = op;
+            this.argument = argument;
+            this.result = result;
+            this.fromMinute = fromMinute;
+            this.toMinute = toMinute;
+        }
+
+        //exact searches are removed by key, the rest may depend on any of several values
+        boolean affectedBy(Set<String> types, Set<String> destinations, BitSet arrivals) {
+            if (op == Operation.MATCH_TYPE) return couldReturn(types);
+            if (op == Operation.MATCH_DESTINATION) return couldReturn(destinations);
+            if (op == Operation.ARRIVAL_FILTER) return covers(arrivals);
+            return false;
+        }
+
+        private boolean couldReturn(Set<String> keys) {
+            if (keys.size() > MATCH_CHECKS) return true;
+            for (String key : keys) {
+                if (TermIndex.matches(argument, key)) return true;
+            }
+            return false;
+        }
+
+        private boolean covers(BitSet minutes) {
+            int next = minutes.nextSetBit(fromMinute);
+            if (fromMinute <= toMinute) return next >= 0 && next <= toMinute;
+            int first = minutes.nextSetBit(0);
+            return next >= 0 || (first >= 0 && first <= toMinute);
+        }
+    }
+
+    private final int capacity;
+    private final Metrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    //operation and normalized argument -> result, least recently used first; guarded by lock
+    private final LinkedHashMap<String, Entry> entries;
+    //version of the first snapshot the last invalidation was made for, older results are not cached
+    private long invalidatedAt;
+
+    public QueryCache(int capacity, Metrics metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    //the cached result, or compute's result cached if it was made from a snapshot no change has overtaken
+    public List<BusRoute> get(Operation op, String argument, RouteSnapshot snapshot,
+                              Function<RouteSnapshot, List<BusRoute>> compute) {
+        return get(op, argument, snapshot, compute, 0, -1);
+    }
+
+    //arrival filter over from..to minutes of the day, the range wraps past midnight when from > to
+    public List<BusRoute> get(Operation op, String argument, RouteSnapshot snapshot,
+                              Function<RouteSnapshot, List<BusRoute>> compute, int fromMinute, int toMinute) {
+        String normalized = RouteIndex.key(argument);
+        String key = op.name() + '\0' + normalized;
+        if (capacity <= 0) return compute.apply(snapshot);
+        lock.lock();
+        try {
+            Entry e = entries.get(key);
+            if (e != null) {
+                metrics.recordCache(op, true);
+                return e.result;
+            }
+        } finally {
+            lock.unlock();
+        }
+        metrics.recordCache(op, false);
+        List<BusRoute> result = compute.apply(snapshot);
+        lock.lock();
+        try {
+            if (snapshot.getVersion() >= invalidatedAt) {
+                entries.put(key, new Entry(op, normalized, result, fromMinute, toMinute));
+                if (entries.size() > capacity) {
+                    Iterator<String> eldest = entries.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    //called by the writer before it publishes version; routes are the old and new states of the changed routes
+    public void invalidate(long version, BusRoute... routes) {
+        invalidate(version, Arrays.asList(routes));
+    }
+
+    //one pass over the cache for the whole change: a ranked match goes only if a changed value is one
+    //it could return, and an arrival filter only if it covers a changed arrival time
+    public void invalidate(long version, Collection<BusRoute> routes) {
+        Set<String> numbers = new HashSet<>();
+        Set<String> types = new HashSet<>();
+        Set<String> destinations = new HashSet<>();
+        BitSet arrivals = new BitSet(24 * 60);
+        for (BusRoute r : routes) {
+            if (r == null) continue;
+            numbers.add(RouteIndex.key(r.getRouteNumber()));
+            types.add(RouteIndex.key(r.getBusType()));
+            destinations.add(RouteIndex.key(r.getDestination()));
+            arrivals.set(BusRoute.toMinutes(r.getArrivalTime()));
+        }
+        lock.lock();
+        try {
+            invalidatedAt = version;
+            for (String number : numbers) {
+                entries.remove(Operation.SEARCH_NUMBER.name() + '\0' + number);
+            }
+            for (String type : types) {
+                entries.remove(Operation.SEARCH_TYPE.name() + '\0' + type);
+            }
+            for (String destination : destinations) {
+                entries.remove(Operation.SEARCH_DESTINATION.name() + '\0' + destination);
+            }
+            entries.values().removeIf(e -> e.affectedBy(types, destinations, arrivals));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //for changes too big to track route by route, like an import
+    public void clear(long version) {
+        lock.lock();
+        try {
+            invalidatedAt = version;
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+//ids of the routes each published version changed, oldest first, so an export can write only what changed;
+//bounded, a delta from before the oldest change kept needs a full export instead
+class ChangeLog {
+    //the ring grows up to this many changes, so a store nobody exports from stays small
+    private final int capacity;
+    private long[] versions;
+    private long[] ids;
+    private int start;
+    private int count;
+    //deltas since this version or a later one are complete
+    private long completeFrom;
+
+    public ChangeLog(int capacity) {
+        this.capacity = capacity;
+        this.versions = new long[Math.min(capacity, 16)];
+        this.ids = new long[versions.length];
+    }
+
+    //forgets every change, used when the whole table is replaced at version
+    public void reset(long version) {
+        start = 0;
+        count = 0;
+        completeFrom = version;
+    }
+
+    public void record(long version, long id) {
+        if (count == versions.length && count < capacity) {
+            grow(Math.min(capacity, count * 2));
+        }
+        if (count == versions.length) {
+            //what changed at the dropped version is no longer known completely
+            completeFrom = Math.max(completeFrom, versions[start]);
+            start = (start + 1) % versions.length;
+            count--;
+        }
+        int at = (start + count) % versions.length;
+        versions[at] = version;
+        ids[at] = id;
+        count++;
+    }
+
+    //copies the ring to larger arrays, oldest change first
+    private void grow(int size) {
+        long[] grownVersions = new long[size];
+        long[] grownIds = new long[size];
+        for (int i = 0; i < count; i++) {
+            grownVersions[i] = versions[(start + i) % versions.length];
+            grownIds[i] = ids[(start + i) % versions.length];
+        }
+        versions = grownVersions;
+        ids = grownIds;
+        start = 0;
+    }
+
+    //ids changed after version since up to the current one, sorted and without repeats
+    public long[] since(long since, long current) {
+        if (since < completeFrom || since > current) {
+            throw new IllegalArgumentException("changes since version " + since
+                    + " are not kept, export all routes instead");
+        }
+        //newest first until the first change that is not newer than since
+        int n = 0;
+        while (n < count && versions[(start + count - 1 - n) % versions.length] > since) {
+            n++;
+        }
+        long[] changed = new long[n];
+        for (int i = 0; i < n; i++) {
+            changed[i] = ids[(start + count - n + i) % versions.length];
+        }
+        Arrays.sort(changed);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || changed[distinct - 1] != changed[i]) changed[distinct++] = changed[i];
+        }
+        return Arrays.copyOf(changed, distinct);
+    }
+}
+
+//routes with their indexes and journal, the route operations shared by the menus, batch mode and server sessions
+class RouteStore implements Closeable {
+    //matching keys whose routes a ranked search returns
+    static final int MATCH_LIMIT = 20;
+    //departures the next departures query shows unless asked for another number
+    static final int NEXT_DEPARTURES = 5;
+    //changes kept for delta exports
+    static final int CHANGE_LOG_SIZE = 1 << 20;
+
+    private final ShardedRouteJournal journal;
+    private final Metrics metrics;
+    private final QueryCache cache;
+    //route rows and their strings kept in direct buffers instead of heap objects
+    private final boolean offHeap;
+    //writers take turns, readers never lock: they read the last published snapshot,
+    //whose table rows are never changed by later writes
+    private final ReentrantLock writeLock = new ReentrantLock();
+    //versions go on from the start time, so a version handed out before a restart is never taken for one of this run
+    private volatile RouteSnapshot current;
+    private final ChangeLog changes = new ChangeLog(CHANGE_LOG_SIZE);
+    //while set, changes stay in memory until commit() writes them in one snapshot
+    private boolean deferred;
+    private int pending;
+    //shards with changes kept in memory, commit() writes only these
+    private final BitSet dirtyShards = new BitSet(ShardedRouteJournal.SHARDS);
+    //thread reading the stored routes, null once they are in
+    private volatile Thread loader;
+
+    //cacheSize is the number of search and filter results kept, 0 turns the cache off
+    public RouteStore(ShardedRouteJournal journal, Metrics metrics, int cacheSize, boolean offHeap) {
+        this.journal = journal;
+        this.metrics = metrics;
+        this.cache = new QueryCache(cacheSize, metrics);
+        this.offHeap = offHeap;
+        this.current = new RouteSnapshot(System.currentTimeMillis() * 1000, new RouteIndex(RouteTable.create(offHeap)));
+    }
+
+    //runs the given loading steps on a background thread and returns at once;
+    //every route operation waits for them, so only the first one pays for a large file
+    public void loadInBackground(Runnable steps) {
+        Thread t = new Thread(steps, "route-loader");
+        t.setDaemon(true);
+        loader = t;
+        t.start();
+    }
+
+    //snapshot plus the journal of changes made after it
+    public void load() throws IOException, ClassNotFoundException {
+        writeLock.lock();
+        try {
+            RouteTable table = RouteTable.create(offHeap);
+            for (BusRoute r : journal.load()) {
+                table.append(r);
+            }
+            cache.clear(nextVersion());
+            publish(new RouteIndex(table).rebuild());
+            changes.reset(current.getVersion());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //starts empty with the live journal open, used when the stored routes could not be read
+    public void reset() throws IOException {
+        writeLock.lock();
+        try {
+            cache.clear(nextVersion());
+            publish(new RouteIndex(RouteTable.create(offHeap)));
+            changes.reset(current.getVersion());
+            journal.openLog();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //the current version; queries against it are consistent and unaffected by later changes
+    public RouteSnapshot snapshot() {
+        return loaded();
+    }
+
+    public boolean isEmpty() {
+        return loaded().isEmpty();
+    }
+
+    public List<BusRoute> findByRouteNumber(String routeNumber) {
+        long start = System.nanoTime();
+        List<BusRoute> result = cache.get(Operation.SEARCH_NUMBER, routeNumber, loaded(), s -> s.getIndex().findByRouteNumber(routeNumber));
+        metrics.record(Operation.SEARCH_NUMBER, start);
+        return result;
+    }
+
+    public List<BusRoute> findByBusType(String busType) {
+        long start = System.nanoTime();
+        List<BusRoute> result = cache.get(Operation.SEARCH_TYPE, busType, loaded(), s -> s.getIndex().findByBusType(busType));
+        metrics.record(Operation.SEARCH_TYPE, start);
+        return result;
+    }
+
+    public List<BusRoute> findByDestination(String destination) {
+        long start = System.nanoTime();
+        List<BusRoute> result = cache.get(Operation.SEARCH_DESTINATION, destination, loaded(), s -> s.getIndex().findByDestination(destination));
+        metrics.record(Operation.SEARCH_DESTINATION, start);
+        return result;
+    }
+
+    //ranked prefix and typo-tolerant search over the distinct bus types
+    public List<BusRoute> matchBusType(String text) {
+        long start = System.nanoTime();
+        List<BusRoute> result = cache.get(Operation.MATCH_TYPE, text, loaded(), s -> s.getIndex().matchBusType(text, MATCH_LIMIT));
+        metrics.record(Operation.MATCH_TYPE, start);
+        return result;
+    }
+
+    public List<BusRoute> matchDestination(String text) {
+        long start = System.nanoTime();
+        List<BusRoute> result = cache.get(Operation.MATCH_DESTINATION, text, loaded(), s -> s.getIndex().matchDestination(text, MATCH_LIMIT));
+        metrics.record(Operation.MATCH_DESTINATION, start);
+        return result;
+    }
+
+    public List<BusRoute> sortedByRouteNumber() {
+        long start = System.nanoTime();
+        List<BusRoute> result = loaded().getIndex().sortedByRouteNumber();
+        metrics.record(Operation.SORT_NUMBER, start);
+        return result;
+    }
+
+    public List<BusRoute> sortedByBusType() {
+        long start = System.nanoTime();
+        List<BusRoute> result = loaded().getIndex().sortedByBusType();
+        metrics.record(Operation.SORT_TYPE, start);
+        return result;
+    }
+
+    public List<BusRoute> sortedByDestination() {
+        long start = System.nanoTime();
+        List<BusRoute> result = loaded().getIndex().sortedByDestination();
+        metrics.record(Operation.SORT_DESTINATION, start);
+        return result;
+    }
+
+    //routes matching every condition of the query, in route number order
+    public List<BusRoute> query(RouteQuery query) {
+        long start = System.nanoTime();
+        List<BusRoute> result = loaded().getIndex().query(query);
+        metrics.record(Operation.ADVANCED_SEARCH, start);
+        return result;
+    }
+
+    public List<BusRoute> findArrivingBefore(LocalTime time, int hours) {
+        long start = System.nanoTime();
+        List<BusRoute> result = cache.get(Operation.ARRIVAL_FILTER, time + "/" + hours, loaded(),
+                s -> s.findArrivingBefore(time, hours),
+                BusRoute.toMinutes(time.minusHours(hours)), BusRoute.toMinutes(time));
+        metrics.record(Operation.ARRIVAL_FILTER, start);
+        return result;
+    }
+
+    //the next count departures to the destination at or after time, wrapping past midnight
+    public List<BusRoute> nextDepartures(String destination, LocalTime time, int count) {
+        long start = System.nanoTime();
+        List<BusRoute> result = loaded().getIndex().nextDepartures(destination, time, count);
+        metrics.record(Operation.NEXT_DEPARTURES, start);
+        return result;
+    }
+
+    public BusRoute find(String routeNumber) {
+        return loaded().find(routeNumber);
+    }
+
+    //writes every route in route number order, or with since >= 0 only the routes added, changed or deleted
+    //after that version; the file is written from one snapshot while changes go on
+    public RouteExporter.Result export(File file, RouteExporter.Format format, long since) throws IOException {
+        long start = System.nanoTime();
+        RouteSnapshot snapshot;
+        IntSequence rows;
+        long[] deleted = new long[0];
+        if (since < 0) {
+            snapshot = loaded();
+            rows = snapshot.getIndex().rowsByRouteNumber();
+        } else {
+            //the rows of the changed ids are looked up while no writer can move them
+            lockLoaded();
+            try {
+                snapshot = current;
+                RouteTable table = snapshot.getIndex().getTable();
+                long[] changed = changes.since(since, snapshot.getVersion());
+                int[] live = new int[changed.length];
+                int n = 0;
+                int d = 0;
+                for (long id : changed) {
+                    int row = table.rowOf(id);
+                    if (row >= 0) {
+                        live[n++] = row;
+                    } else {
+                        changed[d++] = id;
+                    }
+                }
+                rows = IntSequence.of(Arrays.copyOf(live, n));
+                deleted = Arrays.copyOf(changed, d);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        RouteExporter.Result result = new RouteExporter(format, snapshot.getIndex().getTable())
+                .write(file, rows, deleted, snapshot.getVersion(), since);
+        metrics.record(Operation.EXPORT, start);
+        return result;
+    }
+
+    public BusRoute add(String routeNumber, String busType, String destination,
+                        LocalTime departureTime, LocalTime arrivalTime) throws IOException {
+        long start = System.nanoTime();
+        lockLoaded();
+        try {
+            BusRoute route = new BusRoute(journal.nextId(), routeNumber, busType, destination,
+                    departureTime, arrivalTime);
+            RouteIndex index = current.getIndex();
+            cache.invalidate(nextVersion(), route);
+            publish(index.add(index.getTable().append(route)));
+            changes.record(current.getVersion(), route.getId());
+            changed(route, false);
+            return route;
+        } finally {
+            writeLock.unlock();
+            metrics.record(Operation.ADD_ROUTE, start);
+        }
+    }
+
+    //bulk insert with one index rebuild and one snapshot instead of a journal record per route
+    public void addAll(List<BusRoute> added) throws IOException {
+        if (added.isEmpty()) return;
+        lockLoaded();
+        try {
+            RouteIndex index = current.getIndex();
+            long[] ids = new long[added.size()];
+            for (int i = 0; i < ids.length; i++) {
+                BusRoute r = added.get(i);
+                ids[i] = journal.nextId();
+                index.getTable().append(r.withId(ids[i]));
+                dirtyShards.set(ShardedRouteJournal.shardOf(r));
+            }
+            cache.invalidate(nextVersion(), added);
+            publish(index.rebuild());
+            for (long id : ids) {
+                changes.record(current.getVersion(), id);
+            }
+            pending += added.size();
+            if (!deferred) {
+                write(dirtyShards);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //null arguments keep the current value; returns the new version of the route,
+    //or null if someone else changed or deleted it after it was read
+    public BusRoute update(BusRoute route, String busType, String destination,
+                           LocalTime departureTime, LocalTime arrivalTime) throws IOException {
+        long start = System.nanoTime();
+        lockLoaded();
+        try {
+            RouteIndex index = current.getIndex();
+            int row = currentRow(index.getTable(), route);
+            if (row < 0) return null;
+            BusRoute updated = route.with(busType, destination, departureTime, arrivalTime);
+            cache.invalidate(nextVersion(), route, updated);
+            publish(index.remove(row).add(index.getTable().append(updated)));
+            changes.record(current.getVersion(), updated.getId());
+            changed(updated, false);
+            compactTable();
+            return updated;
+        } finally {
+            writeLock.unlock();
+            metrics.record(Operation.EDIT_ROUTE, start);
+        }
+    }
+
+    //false if someone else changed or deleted the route after it was read
+    public boolean delete(BusRoute route) throws IOException {
+        long start = System.nanoTime();
+        lockLoaded();
+        try {
+            RouteIndex index = current.getIndex();
+            int row = currentRow(index.getTable(), route);
+            if (row < 0) return false;
+            index.getTable().delete(route.getId());
+            cache.invalidate(nextVersion(), route);
+            publish(index.remove(row));
+            changes.record(current.getVersion(), route.getId());
+            changed(route, true);
+            compactTable();
+            return true;
+        } finally {
+            writeLock.unlock();
+            metrics.record(Operation.DELETE_ROUTE, start);
+        }
+    }
+
+    //applies update to every route matching query in one pass under one lock: matching rows are found on all
+    //cores for large tables, the indexes change once and the touched shards are written once, not per route
+    public RouteUpdate.Result updateAll(RouteQuery query, RouteUpdate update) throws IOException {
+        long start = System.nanoTime();
+        RouteUpdate.Result result = new RouteUpdate.Result();
+        lockLoaded();
+        try {
+            RouteIndex index = current.getIndex();
+            RouteTable table = index.getTable();
+            int[] rows = index.queryRows(query);
+            result.matched = rows.length;
+            int[] oldRows = new int[rows.length];
+            List<BusRoute> updated = new ArrayList<>();
+            for (int row : rows) {
+                BusRoute changed = update.apply(table, row);
+                if (changed == null) continue;
+                oldRows[updated.size()] = row;
+                updated.add(changed);
+            }
+            result.changed = updated.size();
+            if (updated.isEmpty()) return result;
+
+            List<BusRoute> touched = new ArrayList<>(updated);
+            for (int i = 0; i < updated.size(); i++) {
+                touched.add(table.route(oldRows[i]));
+            }
+            cache.invalidate(nextVersion(), touched);
+            //a few changes go into the indexes one by one, beyond that one rebuild is cheaper
+            boolean rebuild = updated.size() * 64L > index.size();
+            for (int i = 0; i < updated.size(); i++) {
+                int row = table.append(updated.get(i));
+                if (!rebuild) index = index.remove(oldRows[i]).add(row);
+            }
+            publish(rebuild ? index.rebuild() : index);
+            for (BusRoute r : updated) {
+                changes.record(current.getVersion(), r.getId());
+                dirtyShards.set(ShardedRouteJournal.shardOf(r));
+            }
+            pending += updated.size();
+            if (!deferred) {
+                write(dirtyShards);
+            }
+            compactTable();
+            return result;
+        } finally {
+            writeLock.unlock();
+            result.nanos = System.nanoTime() - start;
+            metrics.record(Operation.BULK_UPDATE, start);
+        }
+    }
+
+    //stop journaling every change, they are written by commit()
+    public void deferCommits() {
+        deferred = true;
+    }
+
+    public int pendingChanges() {
+        lockLoaded();
+        try {
+            return pending;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //writes all changes kept in memory as snapshots of the shards they touched
+    public void commit() throws IOException {
+        lockLoaded();
+        try {
+            if (pending == 0) return;
+            write(dirtyShards);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //queues a full snapshot of every shard in place of the journal, flush() waits for it
+    public void save() throws IOException {
+        lockLoaded();
+        try {
+            BitSet all = new BitSet(ShardedRouteJournal.SHARDS);
+            all.set(0, ShardedRouteJournal.SHARDS);
+            write(all);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //waits until every change made so far is on disk, for logout and shutdown
+    public void flush() throws IOException {
+        lockLoaded();
+        try {
+            journal.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lockLoaded();
+        try {
+            journal.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //the current snapshot once the routes are loaded
+    private RouteSnapshot loaded() {
+        awaitLoader();
+        return current;
+    }
+
+    private void lockLoaded() {
+        awaitLoader();
+        writeLock.lock();
+    }
+
+    //the loader itself goes straight through, its steps use the store too
+    private void awaitLoader() {
+        Thread t = loader;
+        if (t == null || t == Thread.currentThread()) return;
+        //going on before the loader is done would read or change a half-loaded table, so an interrupt
+        //does not end the wait; the flag is set again once the routes are in
+        boolean interrupted = false;
+        while (true) {
+            try {
+                t.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        loader = null;
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    //version publish() gives the next snapshot; cached results are invalidated for it before it is published
+    private long nextVersion() {
+        return current.getVersion() + 1;
+    }
+
+    //one volatile write makes the new version visible to every reader at once
+    private void publish(RouteIndex index) {
+        current = new RouteSnapshot(current.getVersion() + 1, index);
+    }
+
+    private void changed(BusRoute route, boolean deleted) throws IOException {
+        if (deferred) {
+            pending++;
+            dirtyShards.set(ShardedRouteJournal.shardOf(route));
+            return;
+        }
+        if (deleted) {
+            journal.delete(route);
+        } else {
+            journal.put(route);
+        }
+        //the split of the table only runs once a shard log is big enough to compact
+        journal.compactIfNeeded(route, k -> shardRoutes().apply(k));
+    }
+
+    private void write(BitSet shards) throws IOException {
+        long start = System.nanoTime();
+        journal.writeSnapshot((BitSet) shards.clone(), shardRoutes(), () -> metrics.record(Operation.SAVE_ROUTES, start));
+        pending = 0;
+        dirtyShards.clear();
+    }
+
+    //the routes of each shard in id order as of now, split in one pass over the live rows;
+    //the lists stay the same while the writer goes on
+    private IntFunction<Collection<BusRoute>> shardRoutes() {
+        RouteTable table = current.getIndex().getTable();
+        int[] live = table.liveRows();
+        int[] shardOfRow = new int[live.length];
+        int[] starts = new int[ShardedRouteJournal.SHARDS + 1];
+        for (int i = 0; i < live.length; i++) {
+            shardOfRow[i] = ShardedRouteJournal.shardOf(table.numberHash(live[i]));
+            starts[shardOfRow[i] + 1]++;
+        }
+        for (int k = 0; k < ShardedRouteJournal.SHARDS; k++) {
+            starts[k + 1] += starts[k];
+        }
+        int[] grouped = new int[live.length];
+        int[] next = Arrays.copyOf(starts, ShardedRouteJournal.SHARDS);
+        for (int i = 0; i < live.length; i++) {
+            grouped[next[shardOfRow[i]]++] = live[i];
+        }
+        return k -> new RowList(table, Arrays.copyOfRange(grouped, starts[k], starts[k + 1]));
+    }
+
+    //row of the route if the table still holds it as it was read, -1 otherwise
+    private static int currentRow(RouteTable table, BusRoute route) {
+        int row = table.rowOf(route.getId());
+        if (row < 0) return -1;
+        boolean same = table.numberEquals(row, route.getRouteNumber(), false)
+                && table.getDictionary().valueEquals(table.busTypeCode(row), route.getBusType())
+                && table.getDictionary().valueEquals(table.destinationCode(row), route.getDestination())
+                && table.departureMinute(row) == BusRoute.toMinutes(route.getDepartureTime())
+                && table.arrivalMinute(row) == BusRoute.toMinutes(route.getArrivalTime());
+        return same ? row : -1;
+    }
+
+    //edits and deletes leave dead rows behind; once they outnumber the live ones, copy the live rows into a new table
+    private void compactTable() {
+        RouteTable table = current.getIndex().getTable();
+        if (table.rowCount() < 1024 || table.rowCount() < 2 * table.liveCount()) return;
+        RouteTable compacted = RouteTable.create(offHeap);
+        for (int row : table.liveRows()) {
+            compacted.append(table.route(row));
+        }
+        publish(new RouteIndex(compacted).rebuild());
+    }
+}
+
+//streams a CSV timetable in chunks parsed on all cores, the rows go into the store in one bulk insert
+class TimetableImporter {
+    private static final int CHUNK_LINES = 4096;
+    //errors kept for the report, the rest are only counted
+    private static final int MAX_REPORTED_ERRORS = 100;
+    static final DateTimeFormatter SECONDS_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    //accepted header names per field, our own export first and then GTFS names
+    private static final String[][] COLUMNS = {
+            {"route_number", "route_short_name", "route"},
+            {"bus_type", "route_type", "type"},
+            {"destination", "trip_headsign", "headsign"},
+            {"departure_time", "departure"},
+            {"arrival_time", "arrival"},
+    };
+
+    //what one import did, errors hold "line N: message"
+    static class Result {
+        int lines;
+        int imported;
+        int errorCount;
+        final List<String> errors = new ArrayList<>();
+        long nanos;
+
+        long linesPerSecond() {
+            return nanos == 0 ? 0 : lines * 1_000_000_000L / nanos;
+        }
+
+        String summary() {
+            return "Imported " + imported + " of " + lines + " lines in " + nanos / 1_000_000 + " ms ("
+                    + linesPerSecond() + " lines/s), " + errorCount + " errors";
+        }
+    }
+
+    private static class Chunk {
+        final List<BusRoute> routes = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+    }
+
+    private final ExecutorService pool = ForkJoinPool.commonPool();
+    private final int maxInFlight = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+    //rows keep file order; a bad line is reported and skipped, it never stops the load
+    public Result run(BufferedReader in, RouteStore store) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        List<BusRoute> parsed = new ArrayList<>();
+        Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+
+        int[] columns = {0, 1, 2, 3, 4};
+        String[] lines = new String[CHUNK_LINES];
+        int count = 0;
+        int lineNumber = 0;
+        int chunkStart = 1;
+        String line = in.readLine();
+        if (line != null) {
+            lineNumber++;
+            int[] header = header(line);
+            if (header != null) {
+                columns = header;
+                chunkStart = 2;
+            } else {
+                lines[count++] = line;
+            }
+        }
+        while (true) {
+            line = in.readLine();
+            if (line != null) {
+                lineNumber++;
+                lines[count++] = line;
+                if (count < CHUNK_LINES) continue;
+            }
+            if (count > 0) {
+                String[] chunk = Arrays.copyOf(lines, count);
+                int first = chunkStart;
+                int[] cols = columns;
+                inFlight.add(pool.submit(() -> parse(chunk, first, cols)));
+                result.lines += count;
+                chunkStart = lineNumber + 1;
+                count = 0;
+                //only a few chunks are held at once, so big files stream through
+                if (inFlight.size() >= maxInFlight) {
+                    collect(inFlight.poll(), parsed, result);
+                }
+            }
+            if (line == null) break;
+        }
+        while (!inFlight.isEmpty()) {
+            collect(inFlight.poll(), parsed, result);
+        }
+
+        store.addAll(parsed);
+        result.imported = parsed.size();
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void collect(Future<Chunk> future, List<BusRoute> parsed, Result result) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("import was interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("import failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        parsed.addAll(chunk.routes);
+        result.errorCount += chunk.errors.size();
+        for (String error : chunk.errors) {
+            if (result.errors.size() == MAX_REPORTED_ERRORS) break;
+            result.errors.add(error);
+        }
+    }
+
+    private static Chunk parse(String[] lines, int firstLine, int[] columns) {
+        Chunk chunk = new Chunk();
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].trim().isEmpty()) continue;
+            try {
+                chunk.routes.add(parseLine(lines[i], columns));
+            } catch (IllegalArgumentException e) {
+                chunk.errors.add("line " + (firstLine + i) + ": " + e.getMessage());
+            }
+        }
+        return chunk;
+    }
+
+    static BusRoute parseLine(String line, int[] columns) {
+        List<String> fields = split(line);
+        String[] values = new String[columns.length];
+        int needed = 0;
+        for (int column : columns) {
+            needed = Math.max(needed, column + 1);
+        }
+        if (fields.size() < needed) {
+            throw new IllegalArgumentException("expected " + needed + " fields, got " + fields.size());
+        }
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = fields.get(columns[i]).trim();
+        }
+        if (values[0].isEmpty()) {
+            throw new IllegalArgumentException("route number is empty");
+        }
+        return new BusRoute(values[0], values[1], values[2], parseTime(values[3]), parseTime(values[4]));
+    }
+
+    //HH:mm, or HH:mm:ss as in GTFS with the seconds dropped; both formatters are shared by all threads
+    private static LocalTime parseTime(String value) {
+        try {
+            DateTimeFormatter fmt = value.length() > 5 ? SECONDS_FORMAT : RouteRenderer.TIME_FORMAT;
+            return BusRoute.fromMinutes(BusRoute.toMinutes(LocalTime.parse(value, fmt)));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("invalid time " + value);
+        }
+    }
+
+    //column of each field when the line is a header, null when it is data
+    private static int[] header(String line) {
+        List<String> names = split(line);
+        int[] columns = new int[COLUMNS.length];
+        for (int f = 0; f < COLUMNS.length; f++) {
+            columns[f] = -1;
+            for (int c = 0; c < names.size() && columns[f] < 0; c++) {
+                String name = names.get(c).trim().toLowerCase(Locale.ROOT);
+                for (String alias : COLUMNS[f]) {
+                    if (name.equals(alias)) {
+                        columns[f] = c;
+                        break;
+                    }
+                }
+            }
+            if (columns[f] < 0) return null;
+        }
+        return columns;
+    }
+
+    //one CSV record, double quotes around a field allow commas and "" inside it
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<>(8);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
+
+//writes routes as CSV or JSON straight from the table columns into a direct buffer drained through a file channel;
+//each distinct bus type and destination is encoded once per export, rows never become BusRoute or String objects
+class RouteExporter {
+    private static final int BUFFER_BYTES = 1 << 20;
+    //worst case of one char: a six byte JSON escape of a control char
+    private static final int MAX_CHAR_BYTES = 6;
+
+    enum Format {
+        CSV, JSON;
+
+        static Format of(String name) {
+            for (Format f : values()) {
+                if (f.name().equalsIgnoreCase(name)) return f;
+            }
+            throw new IllegalArgumentException("unknown export format " + name + ", expected csv or json");
+        }
+    }
+
+    //what one export wrote; since is -1 for a full export
+    static class Result {
+        long version;
+        long since = -1;
+        int routes;
+        int deleted;
+        long bytes;
+        long nanos;
+
+        String summary() {
+            String what = since < 0
+                    ? routes + " routes"
+                    : routes + " changed and " + deleted + " deleted routes since version " + since;
+            return "Exported " + what + " at version " + version + ", " + bytes + " bytes in " + nanos / 1_000_000 + " ms";
+        }
+    }
+
+    private final Format format;
+    private final RouteTable table;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private FileChannel channel;
+    private long written;
+    //escaped UTF-8 of each dictionary code met so far
+    private byte[][] encoded = new byte[256][];
+    private char[] number = new char[64];
+    private final byte[] digits = new byte[20];
+
+    RouteExporter(Format format, RouteTable table) {
+        this.format = format;
+        this.table = table;
+    }
+
+    //rows in the given order, then the ids of deleted routes when since >= 0; the file is replaced only once complete
+    public Result write(File file, IntSequence rows, long[] deleted, long version, long since) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        result.version = version;
+        result.since = since;
+        boolean delta = since >= 0;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel = out;
+                written = 0;
+                if (format == Format.CSV) {
+                    putAscii(delta ? "change,id,route_number,bus_type,destination,departure_time,arrival_time\n"
+                            : "id,route_number,bus_type,destination,departure_time,arrival_time\n");
+                } else {
+                    putAscii("{\"version\":");
+                    putLong(version);
+                    if (delta) {
+                        putAscii(",\"since\":");
+                        putLong(since);
+                    }
+                    putAscii(",\"routes\":[");
+                }
+                for (int i = 0; i < rows.size(); i++) {
+                    if (format == Format.JSON && i > 0) putAscii(",");
+                    putRow(rows.get(i), delta);
+                }
+                if (format == Format.JSON) putAscii(delta ? "\n],\"deleted\":[" : "\n]");
+                if (delta) {
+                    for (int i = 0; i < deleted.length; i++) {
+                        if (format == Format.CSV) {
+                            putAscii("delete,");
+                            putLong(deleted[i]);
+                            putAscii(",,,,,\n");
+                        } else {
+                            if (i > 0) putAscii(",");
+                            putLong(deleted[i]);
+                        }
+                    }
+                }
+                if (format == Format.JSON) putAscii(delta ? "]}\n" : "}\n");
+                drain();
+                out.force(false);
+            } finally {
+                channel = null;
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            //the file keeps its old contents, only the partial copy is removed
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        result.routes = rows.size();
+        result.deleted = delta ? deleted.length : 0;
+        result.bytes = written;
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void putRow(int row, boolean delta) throws IOException {
+        int length = table.numberLength(row);
+        if (number.length < length) number = new char[Math.max(length, number.length * 2)];
+        table.copyNumber(row, number);
+        byte[] busType = encoded(table.busTypeCode(row));
+        byte[] destination = encoded(table.destinationCode(row));
+        ensure(128 + length * MAX_CHAR_BYTES + busType.length + destination.length);
+
+        if (format == Format.CSV) {
+            if (delta) putAscii("put,");
+            putLong(table.id(row));
+            buffer.put((byte) ',');
+            putText(number, length);
+            buffer.put((byte) ',');
+            buffer.put(busType);
+            buffer.put((byte) ',');
+            buffer.put(destination);
+            buffer.put((byte) ',');
+            putTime(table.departureMinute(row));
+            buffer.put((byte) ',');
+            putTime(table.arrivalMinute(row));
+            buffer.put((byte) '\n');
+        } else {
+            putAscii("\n{\"id\":");
+            putLong(table.id(row));
+            putAscii(",\"route_number\":");
+            putText(number, length);
+            putAscii(",\"bus_type\":");
+            buffer.put(busType);
+            putAscii(",\"destination\":");
+            buffer.put(destination);
+            putAscii(",\"departure_time\":\"");
+            putTime(table.departureMinute(row));
+            putAscii("\",\"arrival_time\":\"");
+            putTime(table.arrivalMinute(row));
+            putAscii("\"}");
+        }
+    }
+
+    private byte[] encoded(int code) {
+        if (code >= encoded.length) encoded = Arrays.copyOf(encoded, Math.max(code + 1, encoded.length * 2));
+        if (encoded[code] == null) {
+            char[] chars = table.getDictionary().decode(code).toCharArray();
+            ByteBuffer bytes = ByteBuffer.allocate(2 + chars.length * MAX_CHAR_BYTES);
+            putText(bytes, chars, chars.length);
+            encoded[code] = Arrays.copyOf(bytes.array(), bytes.position());
+        }
+        return encoded[code];
+    }
+
+    private void putText(char[] chars, int length) {
+        putText(buffer, chars, length);
+    }
+
+    //a CSV field is quoted only when it has to be, a JSON string always is
+    private void putText(ByteBuffer out, char[] chars, int length) {
+        boolean quote = format == Format.JSON;
+        for (int i = 0; i < length && !quote; i++) {
+            char c = chars[i];
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (quote) out.put((byte) '"');
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c == '"') {
+                out.put(format == Format.CSV ? (byte) '"' : (byte) '\\');
+                out.put((byte) '"');
+            } else if (format == Format.JSON && c == '\\') {
+                out.put((byte) '\\');
+                out.put((byte) '\\');
+            } else if (format == Format.JSON && c < 0x20) {
+                out.put((byte) '\\');
+                out.put((byte) 'u');
+                out.put((byte) '0');
+                out.put((byte) '0');
+                out.put(hex(c >> 4));
+                out.put(hex(c & 0xF));
+            } else if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(c, chars[++i]);
+                out.put((byte) (0xF0 | cp >> 18));
+                out.put((byte) (0x80 | cp >> 12 & 0x3F));
+                out.put((byte) (0x80 | cp >> 6 & 0x3F));
+                out.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                //a lone surrogate has no UTF-8 form, the same replacement String.getBytes makes
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3F));
+                out.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        if (quote) out.put((byte) '"');
+    }
+
+    private static byte hex(int value) {
+        return (byte) (value < 10 ? '0' + value : 'a' + value - 10);
+    }
+
+    private void putTime(int minute) {
+        buffer.put((byte) ('0' + minute / 600));
+        buffer.put((byte) ('0' + minute / 60 % 10));
+        buffer.put((byte) ':');
+        buffer.put((byte) ('0' + minute % 60 / 10));
+        buffer.put((byte) ('0' + minute % 10));
+    }
+
+    private void putLong(long value) throws IOException {
+        ensure(digits.length);
+        int n = digits.length;
+        do {
+            digits[--n] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        buffer.put(digits, n, digits.length - n);
+    }
+
+    private void putAscii(String text) throws IOException {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    //room for bytes more, draining the buffer into the file first if needed
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return;
+        drain();
+        if (buffer.capacity() < bytes) buffer = ByteBuffer.allocateDirect(bytes);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+//runs text commands, one per line, against the route store; used by batch mode and server connections
+class CommandSession {
+    private final RouteStore store;
+    private final AccountStore accounts;
+    private final RouteRenderer renderer;
+    private final PrintWriter out;
+    //pending changes that trigger a commit, 0 commits only at the end
+    private final int checkpointEvery;
+    //remote sessions may only import and export files inside fileDir, and none when it is null
+    private final boolean remote;
+    private final Path fileDir;
+    private UserAccount currentUser;
+
+    public CommandSession(RouteStore store, AccountStore accounts, OutputStream stream, int checkpointEvery) {
+        this(store, accounts, new RouteRenderer(stream), checkpointEvery, false, null);
+    }
+
+    //a session for a remote client, whose file names are resolved inside fileDir
+    public CommandSession(RouteStore store, AccountStore accounts, RouteRenderer renderer, Path fileDir) {
+        this(store, accounts, renderer, 0, true, fileDir);
+    }
+
+    private CommandSession(RouteStore store, AccountStore accounts, RouteRenderer renderer, int checkpointEvery,
+                           boolean remote, Path fileDir) {
+        this.store = store;
+        this.accounts = accounts;
+        this.renderer = renderer;
+        this.out = renderer.writer();
+        this.checkpointEvery = checkpointEvery;
+        this.remote = remote;
+        this.fileDir = fileDir == null ? null : fileDir.toAbsolutePath().normalize();
+    }
+
+    //executes every line, a failing line is reported and skipped; returns the number of failed lines
+    public int run(BufferedReader in) throws IOException {
+        long start = System.nanoTime();
+        int lineNumber = 0;
+        int commands = 0;
+        int errors = 0;
+        int changes = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int before = store.pendingChanges();
+            try {
+                List<String> args = tokenize(line);
+                if (args.isEmpty() || args.get(0).startsWith("#")) continue;
+                commands++;
+                execute(args);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                errors++;
+                out.println("Error on line " + lineNumber + ": " + e.getMessage());
+            }
+            changes += Math.max(0, store.pendingChanges() - before);
+            if (checkpointEvery > 0 && store.pendingChanges() >= checkpointEvery) {
+                store.commit();
+            }
+        }
+        store.commit();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        out.println(commands + " commands, " + changes + " changes, " + errors + " errors in " + millis + " ms");
+        out.flush();
+        return errors;
+    }
+
+    //server mode: every command is answered by its output and then an OK or ERR line
+    public void serve(BufferedReader in) throws IOException {
+        out.println("READY log in with: login <username> <password>");
+        out.flush();
+        String line;
+        while ((line = in.readLine()) != null) {
+            try {
+                List<String> args = tokenize(line);
+                if (args.isEmpty()) continue;
+                if (args.get(0).equalsIgnoreCase("quit")) {
+                    flush();
+                    out.println("OK");
+                    break;
+                }
+                execute(args);
+                out.println("OK");
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                out.println("ERR " + e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                //a failed write or an unexpected error ends this command only, the client is told and may go on
+                out.println("ERR " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+            }
+            out.flush();
+        }
+        out.flush();
+    }
+
+    private void execute(List<String> args) throws IOException {
+        String command = args.get(0).toLowerCase(Locale.ROOT);
+        switch (command) {
+            case "login":
+                expect(args, 3, "login <username> <password>");
+                UserAccount account = accounts.authenticate(args.get(1), args.get(2));
+                if (account == null) {
+                    throw new IllegalArgumentException("username or password is incorrect");
+                }
+                currentUser = account;
+                out.println("Logged in as " + account.getUsername());
+                break;
+            case "logout":
+                flush();
+                currentUser = null;
+                out.println("Logged out");
+                break;
+            case "add":
+                requireAdmin();
+                expect(args, 6, "add <number> <type> <destination> <departure> <arrival>");
+                BusRoute added = store.add(args.get(1), args.get(2), args.get(3),
+                        parseTime(args.get(4)), parseTime(args.get(5)));
+                out.println("Added route №" + added.getRouteNumber());
+                break;
+            case "edit":
+                requireAdmin();
+                if (args.size() < 3) {
+                    throw new IllegalArgumentException("usage: edit <number> [type=..] [destination=..] [departure=..] [arrival=..]");
+                }
+                edit(findRoute(args.get(1)), args.subList(2, args.size()));
+                out.println("Updated route №" + args.get(1));
+                break;
+            case "delete":
+                requireAdmin();
+                expect(args, 2, "delete <number>");
+                if (!store.delete(findRoute(args.get(1)))) {
+                    throw new IllegalStateException("route №" + args.get(1) + " was changed or deleted by someone else");
+                }
+                out.println("Deleted route №" + args.get(1));
+                break;
+            case "search":
+                requireUser();
+                expect(args, 3, "search number|type|destination <value>");
+                print(search(args.get(1), args.get(2)));
+                break;
+            case "match":
+                requireUser();
+                expect(args, 3, "match type|destination <text>");
+                print(match(args.get(1), args.get(2)));
+                break;
+            case "find":
+                requireUser();
+                print(store.query(query(args.subList(1, args.size()))));
+                break;
+            case "sort":
+                requireUser();
+                expect(args, 2, "sort number|type|destination");
+                print(sorted(args.get(1)));
+                break;
+            case "filter":
+                requireUser();
+                expect(args, 2, "filter <time>");
+                print(store.findArrivingBefore(parseTime(args.get(1)), 12));
+                break;
+            case "next":
+                requireUser();
+                if (args.size() != 3 && args.size() != 4) {
+                    throw new IllegalArgumentException("usage: next <destination> <time> [count]");
+                }
+                print(store.nextDepartures(args.get(1), parseTime(args.get(2)),
+                        args.size() == 4 ? parseCount(args.get(3)) : RouteStore.NEXT_DEPARTURES));
+                break;
+            case "import":
+                requireAdmin();
+                expect(args, 2, "import <csv file>");
+                TimetableImporter.Result imported;
+                try (BufferedReader csv = new BufferedReader(new FileReader(file(args.get(1))), 1 << 16)) {
+                    imported = new TimetableImporter().run(csv, store);
+                } catch (FileNotFoundException e) {
+                    throw new IllegalArgumentException("file " + args.get(1) + " is not found");
+                }
+                for (String error : imported.errors) {
+                    out.println("  " + error);
+                }
+                out.println(imported.summary());
+                break;
+            case "update":
+                requireAdmin();
+                int set = args.indexOf("set");
+                if (set < 0 || set == args.size() - 1) {
+                    throw new IllegalArgumentException("usage: update [number=..] [type=..] [destination=..] [departure=..] "
+                            + "[arrival=..] set [type=..] [destination=..] [departure=HH:mm|+-minutes] [arrival=HH:mm|+-minutes]");
+                }
+                RouteUpdate.Result bulk = store.updateAll(query(args.subList(1, set)), update(args.subList(set + 1, args.size())));
+                out.println(bulk.summary());
+                break;
+            case "export":
+                requireAdmin();
+                if (args.size() != 3 && args.size() != 4) {
+                    throw new IllegalArgumentException("usage: export csv|json <file> [since version]");
+                }
+                RouteExporter.Format format = RouteExporter.Format.of(args.get(1));
+                long since = args.size() == 4 ? parseVersion(args.get(3)) : -1;
+                try {
+                    out.println(store.export(file(args.get(2)), format, since).summary());
+                } catch (IOException e) {
+                    //a bad path or a full disk fails this line only, like any other bad argument
+                    throw new IllegalArgumentException("cannot export to " + args.get(2) + ": " + e.getMessage(), e);
+                }
+                break;
+            case "checkpoint":
+                requireAdmin();
+                store.commit();
+                flush();
+                out.println("Changes committed");
+                break;
+            default:
+                throw new IllegalArgumentException("unknown command " + args.get(0));
+        }
+    }
+
+    private void edit(BusRoute route, List<String> changes) throws IOException {
+        String busType = null;
+        String destination = null;
+        LocalTime departure = null;
+        LocalTime arrival = null;
+        for (String change : changes) {
+            int eq = change.indexOf('=');
+            String value = eq < 0 ? "" : change.substring(eq + 1);
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("expected field=value, got " + change);
+            }
+            switch (change.substring(0, eq).toLowerCase(Locale.ROOT)) {
+                case "type":
+                    busType = value;
+                    break;
+                case "destination":
+                    destination = value;
+                    break;
+                case "departure":
+                    departure = parseTime(value);
+                    break;
+                case "arrival":
+                    arrival = parseTime(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown field " + change.substring(0, eq));
+            }
+        }
+        if (store.update(route, busType, destination, departure, arrival) == null) {
+            throw new IllegalStateException("route №" + route.getRouteNumber() + " was changed or deleted by someone else");
+        }
+    }
+
+    private List<BusRoute> search(String field, String value) {
+        switch (field.toLowerCase(Locale.ROOT)) {
+            case "number":
+                return store.findByRouteNumber(value);
+            case "type":
+                return store.findByBusType(value);
+            case "destination":
+                return store.findByDestination(value);
+            default:
+                throw new IllegalArgumentException("unknown field " + field);
+        }
+    }
+
+    //number=.. type=.. destination=.. departure=HH:mm-HH:mm arrival=HH:mm-HH:mm, any of them
+    private static RouteQuery query(List<String> conditions) {
+        RouteQuery query = RouteQuery.ALL;
+        for (String condition : conditions) {
+            int eq = condition.indexOf('=');
+            String value = eq < 0 ? "" : condition.substring(eq + 1);
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("expected field=value, got " + condition);
+            }
+            switch (condition.substring(0, eq).toLowerCase(Locale.ROOT)) {
+                case "number":
+                    query = query.withRouteNumber(value);
+                    break;
+                case "type":
+                    query = query.withBusType(value);
+                    break;
+                case "destination":
+                    query = query.withDestination(value);
+                    break;
+                case "departure":
+                    query = query.withDeparture(parseTime(from(value)), parseTime(to(value)));
+                    break;
+                case "arrival":
+                    query = query.withArrival(parseTime(from(value)), parseTime(to(value)));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown field " + condition.substring(0, eq));
+            }
+        }
+        return query;
+    }
+
+    //type=.. destination=.. departure=.. arrival=..; a time is HH:mm, or +minutes / -minutes to shift it
+    private static RouteUpdate update(List<String> changes) {
+        RouteUpdate update = RouteUpdate.NONE;
+        for (String change : changes) {
+            int eq = change.indexOf('=');
+            String value = eq < 0 ? "" : change.substring(eq + 1);
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("expected field=value, got " + change);
+            }
+            switch (change.substring(0, eq).toLowerCase(Locale.ROOT)) {
+                case "type":
+                    update = update.withBusType(value);
+                    break;
+                case "destination":
+                    update = update.withDestination(value);
+                    break;
+                case "departure":
+                    update = isShift(value) ? update.shiftDeparture(parseShift(value)) : update.withDeparture(parseTime(value));
+                    break;
+                case "arrival":
+                    update = isShift(value) ? update.shiftArrival(parseShift(value)) : update.withArrival(parseTime(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown field " + change.substring(0, eq));
+            }
+        }
+        return update;
+    }
+
+    static boolean isShift(String value) {
+        return value.startsWith("+") || value.startsWith("-");
+    }
+
+    static int parseShift(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid shift " + value + ", expected +minutes or -minutes");
+        }
+    }
+
+    //HH:mm-HH:mm, a single time is a range of one minute
+    private static String from(String range) {
+        int dash = range.indexOf('-');
+        return dash < 0 ? range : range.substring(0, dash);
+    }
+
+    private static String to(String range) {
+        int dash = range.indexOf('-');
+        return dash < 0 ? range : range.substring(dash + 1);
+    }
+
+    private List<BusRoute> match(String field, String text) {
+        switch (field.toLowerCase(Locale.ROOT)) {
+            case "type":
+                return store.matchBusType(text);
+            case "destination":
+                return store.matchDestination(text);
+            default:
+                throw new IllegalArgumentException("unknown field " + field);
+        }
+    }
+
+    private List<BusRoute> sorted(String field) {
+        switch (field.toLowerCase(Locale.ROOT)) {
+            case "number":
+                return store.sortedByRouteNumber();
+            case "type":
+                return store.sortedByBusType();
+            case "destination":
+                return store.sortedByDestination();
+            default:
+                throw new IllegalArgumentException("unknown field " + field);
+        }
+    }
+
+    private void print(List<BusRoute> rows) {
+        renderer.print(rows, 0, rows.size());
+        out.println(rows.size() + " routes");
+    }
+
+    private BusRoute findRoute(String routeNumber) {
+        BusRoute route = store.find(routeNumber);
+        if (route == null) {
+            throw new IllegalArgumentException("route №" + routeNumber + " is not found");
+        }
+        return route;
+    }
+
+    //waits until the changes made so far are on disk
+    private void flush() throws IOException {
+        store.flush();
+        accounts.flush();
+    }
+
+    private void requireUser() {
+        if (currentUser == null) {
+            throw new IllegalStateException("log in first");
+        }
+    }
+
+    private void requireAdmin() {
+        requireUser();
+        if (!currentUser.isAdmin()) {
+            throw new IllegalStateException("administrator rights required");
+        }
+    }
+
+    //the file a command names; a remote client gets only relative names inside fileDir, never a path out of it
+    private File file(String name) {
+        if (!remote) return new File(name);
+        if (fileDir == null) {
+            throw new IllegalStateException("files are not available in server sessions, see busdepot.server.fileDir");
+        }
+        Path path;
+        try {
+            path = Paths.get(name);
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException("invalid file name " + name);
+        }
+        if (path.getRoot() != null || name.isEmpty()) {
+            throw new IllegalArgumentException("file name " + name + " must be relative to the server's file directory");
+        }
+        for (Path part : path) {
+            if (part.toString().equals("..")) {
+                throw new IllegalArgumentException("file name " + name + " must not contain ..");
+            }
+        }
+        Path resolved = fileDir.resolve(path).normalize();
+        if (!resolved.startsWith(fileDir)) {
+            throw new IllegalArgumentException("file name " + name + " is outside the server's file directory");
+        }
+        return resolved.toFile();
+    }
+
+    private static void expect(List<String> args, int count, String usage) {
+        if (args.size() != count) {
+            throw new IllegalArgumentException("usage: " + usage);
+        }
+    }
+
+    private static long parseVersion(String value) {
+        try {
+            long version = Long.parseLong(value);
+            if (version >= 0) return version;
+        } catch (NumberFormatException e) {
+            //reported below
+        }
+        throw new IllegalArgumentException("invalid version " + value);
+    }
+
+    private static int parseCount(String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count > 0) return count;
+        } catch (NumberFormatException e) {
+            //reported below
+        }
+        throw new IllegalArgumentException("invalid count " + value + ", expected a positive number");
+    }
+
+    private static LocalTime parseTime(String value) {
+        try {
+            return LocalTime.parse(value, RouteRenderer.TIME_FORMAT);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("invalid time " + value + ", expected HH:mm");
+        }
+    }
+
+    //splits on whitespace, double quotes keep spaces inside one argument
+    static List<String> tokenize(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                current.append(c);
+                inToken = true;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        if (inToken) {
+            args.add(current.toString());
+        }
+        return args;
+    }
+}
+
+//line protocol server on a local TCP port, every connection is a command session with its own login
+class RouteServer implements Closeable {
+    private final RouteStore store;
+    private final AccountStore accounts;
+    private final ServerSocket socket;
+    private final ExecutorService sessions = sessionExecutor();
+    //directory clients import from and export to, null when they may not touch files
+    private final Path fileDir;
+
+    public RouteServer(RouteStore store, AccountStore accounts, int port, Path fileDir) throws IOException {
+        this.store = store;
+        this.accounts = accounts;
+        this.fileDir = fileDir;
+        this.socket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    //accepts connections until the server is closed
+    public void serve() {
+        while (!socket.isClosed()) {
+            Socket connection;
+            try {
+                connection = socket.accept();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.out.println("Error with accepting connection: " + e.getMessage());
+                }
+                continue;
+            }
+            sessions.execute(() -> handle(connection));
+        }
+    }
+
+    private void handle(Socket connection) {
+        try (Socket c = connection;
+             BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8))) {
+            RouteRenderer renderer = new RouteRenderer(c.getOutputStream(), StandardCharsets.UTF_8);
+            new CommandSession(store, accounts, renderer, fileDir).serve(in);
+        } catch (IOException e) {
+            //the client went away, its session ends with it
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        sessions.shutdown();
+    }
+
+    //a virtual thread per session where the runtime has them (Java 21+), a cached platform thread otherwise
+    private static ExecutorService sessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "route-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
+
+//synthetic timetables with the skew of real ones: few bus types, a long tail of destinations, rush-hour peaks
+class RouteGenerator {
+    private static final String[] BUS_TYPES = {"Regular", "Express", "Articulated", "Minibus", "Electric",
+            "Night", "Intercity", "Shuttle"};
+
+    private final Random random;
+    private final String[] destinations;
+
+    public RouteGenerator(long seed, int destinationCount) {
+        this.random = new Random(seed);
+        this.destinations = new String[destinationCount];
+        for (int i = 0; i < destinationCount; i++) {
+            destinations[i] = "Stop " + i;
+        }
+    }
+
+    public List<BusRoute> generate(int count) {
+        List<BusRoute> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int departure = departureMinute();
+            int arrival = (departure + 10 + random.nextInt(240)) % (24 * 60);
+            result.add(new BusRoute(String.valueOf(i + 1), BUS_TYPES[zipf(BUS_TYPES.length)],
+                    destinations[zipf(destinations.length)],
+                    BusRoute.fromMinutes(departure), BusRoute.fromMinutes(arrival)));
+        }
+        return result;
+    }
+
+    public String busType() {
+        return BUS_TYPES[zipf(BUS_TYPES.length)];
+    }
+
+    public String destination() {
+        return destinations[zipf(destinations.length)];
     }
 
-    public String getBusType() {
-        return busType;
+    public int nextInt(int bound) {
+        return random.nextInt(bound);
     }
-    public void setBusType(String busType) {
-        this.busType = busType;
+
+    //index in 0..n-1 where index k is picked about 1/(k+1) as often as index 0
+    private int zipf(int n) {
+        double u = random.nextDouble();
+        return (int) Math.min(n - 1, Math.floor(Math.exp(u * Math.log(n + 1.0)) - 1));
     }
 
-    public String getDestination() {
-        return destination;
+    //half the departures fall into the morning and evening peaks
+    private int departureMinute() {
+        if (random.nextBoolean()) {
+            int peak = random.nextBoolean() ? 8 * 60 : 17 * 60;
+            return Math.floorMod(peak + (int) (random.nextGaussian() * 45), 24 * 60);
+        }
+        return random.nextInt(24 * 60);
     }
-    public void setDestination(String destination) {
-        this.destination = destination;
+}
+
+//benchmark harness for the store operations behind the menus: throughput, latency percentiles, allocation per op
+class RouteBenchmark {
+    private static final int MAX_SAMPLES = 1 << 20;
+    //time spent on each benchmark after its warm-up
+    private static final long MEASURE_NANOS = Long.getLong("busdepot.bench.millis", 1000) * 1_000_000L;
+    //measures the off-heap route table, the same switch as the depot's
+    private static final boolean OFF_HEAP = Boolean.getBoolean("busdepot.routes.offHeap");
+    //slow operations still get this many samples
+    private static final int MIN_SAMPLES = 5;
+
+    private final long[] samples = new long[MAX_SAMPLES];
+    private final com.sun.management.ThreadMXBean threads = threadBean();
+    private final RouteRenderer renderer = new RouteRenderer(OutputStream.nullOutputStream());
+    private final PrintStream report;
+    private final File dir;
+    //consumed results, so the JIT cannot drop the measured work
+    private long sink;
+
+    public RouteBenchmark(PrintStream report, File dir) {
+        this.report = report;
+        this.dir = dir;
     }
 
-    public LocalTime getDepartureTime() {
-        return departureTime;
+    public void run(int[] sizes) throws IOException, ClassNotFoundException {
+        report.printf("%-22s %10s %12s %10s %10s %10s %10s %12s%n",
+                "benchmark", "routes", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us", "bytes/op");
+        for (int size : sizes) {
+            runSize(size);
+        }
+        report.println("(sink " + sink + ")");
     }
-    public void setDepartureTime(LocalTime departureTime) {
-        this.departureTime = departureTime;
+
+    private void runSize(int size) throws IOException, ClassNotFoundException {
+        File data = new File(dir, "bench_routes.dat");
+        File log = new File(dir, "bench_routes.log");
+        deleteBenchFiles();
+
+        RouteGenerator generator = new RouteGenerator(42, Math.max(100, size / 50));
+        //no query cache, so repeated lookups measure the indexes
+        RouteStore store = new RouteStore(new ShardedRouteJournal(data, log, Long.MAX_VALUE, 0), new Metrics(), 0, OFF_HEAP);
+        store.load();
+        store.deferCommits();
+        store.addAll(generator.generate(size));
+
+        //same work as the menus: get the result and render its first page
+        measure("search number", size, () -> page(store.findByRouteNumber(String.valueOf(generator.nextInt(size) + 1))));
+        measure("search type", size, () -> page(store.findByBusType(generator.busType())));
+        measure("search destination", size, () -> page(store.findByDestination(generator.destination())));
+        //a destination with its first letter missing, found through the typo path
+        measure("match destination", size, () -> page(store.matchDestination(generator.destination().substring(1))));
+        measure("sort number", size, () -> page(store.sortedByRouteNumber()));
+        measure("sort type", size, () -> page(store.sortedByBusType()));
+        measure("sort destination", size, () -> page(store.sortedByDestination()));
+        measure("arrival filter", size,
+                () -> page(store.findArrivingBefore(BusRoute.fromMinutes(generator.nextInt(24 * 60)), 12)));
+        measure("next departures", size, () -> page(store.nextDepartures(generator.destination(),
+                BusRoute.fromMinutes(generator.nextInt(24 * 60)), RouteStore.NEXT_DEPARTURES)));
+        measure("export csv", size,
+                () -> sink += store.export(new File(dir, "bench_routes.csv"), RouteExporter.Format.CSV, -1).bytes);
+        measure("save", size, () -> {
+            store.save();
+            store.flush();
+        });
+        measure("load", size, () -> {
+            try (RouteStore loaded = new RouteStore(new ShardedRouteJournal(data, log, Long.MAX_VALUE, 0), new Metrics(), 0, OFF_HEAP)) {
+                loaded.load();
+                sink += loaded.snapshot().getVersion();
+            }
+        });
+        store.close();
+        deleteBenchFiles();
     }
 
-    public LocalTime getArrivalTime() {
-        return arrivalTime;
+    //snapshot and log of every shard
+    private void deleteBenchFiles() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("bench_routes."));
+        if (files == null) return;
+        for (File f : files) {
+            Files.deleteIfExists(f.toPath());
+        }
     }
-    public void setArrivalTime(LocalTime arrivalTime) {
-        this.arrivalTime = arrivalTime;
+
+    private void page(List<BusRoute> rows) {
+        renderer.print(rows, 0, Math.min(rows.size(), 20));
+        sink += rows.size();
     }
 
-    @Override
-    public String toString() {
-        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("HH:mm");
-        return String.format("Route №%s | Type: %s | Destination point: %s | Departure time: %s | Arrival time: %s",
-                routeNumber, busType, destination, departureTime.format(fmt), arrivalTime.format(fmt));
+    private interface BenchmarkStep {
+        void run() throws IOException, ClassNotFoundException;
     }
-}
 
-//account class
-class UserAccount implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private void measure(String name, int size, BenchmarkStep step) throws IOException, ClassNotFoundException {
+        //warm-up with the same time budget, so the JIT has compiled the path before we measure it
+        long warmEnd = System.nanoTime() + MEASURE_NANOS;
+        for (int i = 0; i < MIN_SAMPLES || System.nanoTime() < warmEnd; i++) {
+            step.run();
+        }
 
-    private String username;
-    private String password;
-    private boolean isAdmin;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + MEASURE_NANOS;
+        int n = 0;
+        long now = start;
+        while (n < MAX_SAMPLES && (n < MIN_SAMPLES || now < end)) {
+            long t = now;
+            step.run();
+            now = System.nanoTime();
+            samples[n++] = now - t;
+        }
+        long elapsed = now - start;
+        long allocated = allocatedBytes() - allocatedBefore;
 
-    public UserAccount(String username, String password, boolean isAdmin) {
-        this.username = username;
-        this.password = password;
-        this.isAdmin = isAdmin;
+        Arrays.sort(samples, 0, n);
+        report.printf("%-22s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %12s%n", name, size,
+                n * 1e9 / elapsed, micros(percentile(n, 0.50)), micros(percentile(n, 0.99)),
+                micros(percentile(n, 0.999)), micros(samples[n - 1]),
+                allocated < 0 ? "n/a" : String.valueOf(allocated / n));
     }
 
-    public String getUsername() {
-        return username;
+    private long percentile(int n, double p) {
+        return samples[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
     }
-    public String getPassword() {
-        return password;
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
     }
-    public boolean isAdmin() {
-        return isAdmin;
+
+    //bytes allocated by this thread so far, -1 where the JVM does not track it
+    private long allocatedBytes() {
+        if (threads == null) return -1;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        }
+        return null;
     }
 }
 
 //main class
 public class Main {
     private static final String ROUTES_DATA_FILE = "bus_routes.dat";
+    private static final String ROUTES_JOURNAL_FILE = "bus_routes.log";
     private static final String ACCOUNTS_DATA_FILE = "user_accounts.dat";
+    private static final String ACCOUNTS_JOURNAL_FILE = "user_accounts.log";
+    private static final String METRICS_FILE = "busdepot_metrics.txt";
+    //rows shown per page of search, sort and time-limit results; at least 1, like a size entered at the page prompt
+    private static final int DEFAULT_PAGE_SIZE = Math.max(1, Integer.getInteger("busdepot.pageSize", 20));
+    //journal size that triggers folding it into a new snapshot
+    private static final long JOURNAL_COMPACT_BYTES = Long.getLong("busdepot.journal.compactBytes", 1 << 20);
+    //changes made within this many milliseconds are written with one fsync
+    private static final long JOURNAL_GROUP_COMMIT_MILLIS = Long.getLong("busdepot.journal.groupCommitMillis", 10);
+    //pending route changes that trigger a commit in batch mode, 0 commits once at the end
+    private static final int BATCH_CHECKPOINT = Integer.getInteger("busdepot.batch.checkpoint", 0);
+    //search and filter results kept for repeated queries, 0 turns the cache off
+    private static final int QUERY_CACHE_SIZE = Integer.getInteger("busdepot.queryCache.size", 1024);
+    //route rows and strings in direct buffers outside the heap, for tables of tens of millions of routes
+    private static final boolean ROUTES_OFF_HEAP = Boolean.getBoolean("busdepot.routes.offHeap");
+    //local TCP port of server mode
+    private static final int SERVER_PORT = Integer.getInteger("busdepot.server.port", 7070);
+    //directory server clients import from and export to, empty turns import and export off in server mode
+    private static final String SERVER_FILE_DIR = System.getProperty("busdepot.server.fileDir", "");
+    //how often the statistics are written to METRICS_FILE, 0 turns the dump off
+    private static final long METRICS_DUMP_SECONDS = Long.getLong("busdepot.metrics.dumpSeconds", 60);
+    //time one password check may take, the hash iteration count is calibrated to it at startup
+    private static final long LOGIN_BUDGET_MILLIS = Long.getLong("busdepot.login.budgetMillis", 50);
 
-    private List<BusRoute> routes = new ArrayList<>();
-    private List<UserAccount> users = new ArrayList<>();
+    private final Metrics metrics = new Metrics();
+    //route files split into shards, e.g. bus_routes.3.dat and bus_routes.3.log
+    private final ShardedRouteJournal routeJournal = new ShardedRouteJournal(new File(ROUTES_DATA_FILE),
+            new File(ROUTES_JOURNAL_FILE), JOURNAL_COMPACT_BYTES, JOURNAL_GROUP_COMMIT_MILLIS);
+    private final RouteStore store = new RouteStore(routeJournal, metrics, QUERY_CACHE_SIZE, ROUTES_OFF_HEAP);
+    private final AccountStore accounts = new AccountStore(new File(ACCOUNTS_DATA_FILE),
+            new File(ACCOUNTS_JOURNAL_FILE), JOURNAL_COMPACT_BYTES, JOURNAL_GROUP_COMMIT_MILLIS, passwordHasher(),
+            metrics);
 
     private Scanner scanner = new Scanner(System.in);
+    private final RouteRenderer renderer = new RouteRenderer(System.out);
+    private int pageSize = DEFAULT_PAGE_SIZE;
     private UserAccount currentUser;
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            //route table sizes to run, the data files of the depot are not touched
+            runBenchmark(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        int port = SERVER_PORT;
+        if (args.length > 1 && args[0].equals("--server")) {
+            port = parsePort(args[1]);
+            if (port < 0) {
+                System.out.println("Usage: --server [port], the port is a number from 1 to 65535");
+                return;
+            }
+        }
         Main app = new Main();
         app.loadData();
-        app.authMenu();
+        if (args.length > 0 && args[0].equals("--batch")) {
+            //script file, or standard input when it is missing or "-"
+            app.runBatch(args.length > 1 ? args[1] : "-");
+        } else if (args.length > 0 && args[0].equals("--server")) {
+            //runs until the process is stopped, the shutdown hook closes the journals
+            app.runServer(port);
+            return;
+        } else {
+            app.authMenu();
+        }
+        app.closeJournal();
     }
 
-    //data loader
-    private void loadData() {
-        //routes loader
-        File routeFile = new File(ROUTES_DATA_FILE);
-        if (routeFile.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(routeFile))) {
-                routes = (List<BusRoute>) ois.readObject();
-            } catch (Exception e) {
-                System.out.println("Error with loading routes data: " + e.getMessage());
-                routes = new ArrayList<>();
-            }
-        } else {
-            //if there's no files, creating new (example)
-            routes.add(new BusRoute("1", "Express", "Minsk", LocalTime.of(9, 0), LocalTime.of(12, 0)));
-            saveRoutes();
+    //the TCP port given on the command line, -1 if it is not one
+    private static int parseSize(String value) {
+        try {
+            int size = Integer.parseInt(value);
+            return size >= 1 ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            return port >= 1 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
+
+    //a fixed -Dbusdepot.password.iterations wins over calibrating to the login budget
+    private static PasswordHasher passwordHasher() {
+        Integer iterations = Integer.getInteger("busdepot.password.iterations");
+        return iterations != null ? new PasswordHasher(iterations) : PasswordHasher.calibrate(LOGIN_BUDGET_MILLIS);
+    }
+
+    //data loader; routes are read in the background, so the login prompt does not wait for them
+    private void loadData() {
+        store.loadInBackground(this::loadRoutes);
 
         //accounts loader
         File accountsFile = new File(ACCOUNTS_DATA_FILE);
-        if (accountsFile.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(accountsFile))) {
-                users = (List<UserAccount>) ois.readObject();
-            } catch (Exception e) {
-                System.out.println("Error with loading accounts data: " + e.getMessage());
-                users = new ArrayList<>();
+        boolean accountsFileExists = accountsFile.exists();
+        try {
+            accounts.load();
+        } catch (Exception e) {
+            System.out.println("Error with loading accounts data: " + e.getMessage());
+            try {
+                accounts.openLog();
+            } catch (IOException ex) {
+                System.out.println("Error with opening accounts journal: " + ex.getMessage());
             }
-        } else {
+        }
+        if (!accountsFileExists && accounts.isEmpty()) {
             //if there's no accounts - creating new admin and user
-            users.add(new UserAccount("admin", "admin123", true));
-            users.add(new UserAccount("user", "user123", false));
+            PasswordHasher hasher = accounts.getHasher();
+            try {
+                accounts.add(hasher.create("admin", "admin123", true));
+                accounts.add(hasher.create("user", "user123", false));
+            } catch (IOException e) {
+                System.out.println("Error with saving accounts data: " + e.getMessage());
+            }
             saveUsers();
         }
+        metrics.dumpPeriodically(new File(METRICS_FILE), METRICS_DUMP_SECONDS);
+    }
+
+    //routes loader, runs on the store's loader thread
+    private void loadRoutes() {
+        long start = System.nanoTime();
+        boolean routeFileExists = routeJournal.exists();
+        try {
+            store.load();
+        } catch (Exception e) {
+            System.out.println("Error with loading routes data: " + e.getMessage());
+            try {
+                store.reset();
+            } catch (IOException ex) {
+                System.out.println("Error with opening routes journal: " + ex.getMessage());
+            }
+        }
+        if (!routeFileExists && store.isEmpty()) {
+            //if there's no files, creating new (example)
+            try {
+                store.add("1", "Express", "Minsk", LocalTime.of(9, 0), LocalTime.of(12, 0));
+            } catch (IOException e) {
+                System.out.println("Error with saving routes data: " + e.getMessage());
+            }
+            saveRoutes();
+        }
+        metrics.record(Operation.LOAD_DATA, start);
     }
 
-    //routes saver
+    //routes saver, writes a full snapshot
     private void saveRoutes() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(ROUTES_DATA_FILE))) {
-            oos.writeObject(routes);
+        try {
+            store.save();
         } catch (IOException e) {
             System.out.println("Error with saving rotes data: " + e.getMessage());
         }
     }
 
-    //accounts saver
+    //waits until every change is on disk, so nothing is left in flight when an operator leaves
+    private void flushData() {
+        try {
+            store.flush();
+        } catch (IOException e) {
+            System.out.println("Error with saving routes data: " + e.getMessage());
+        }
+        try {
+            accounts.flush();
+        } catch (IOException e) {
+            System.out.println("Error with saving accounts data: " + e.getMessage());
+        }
+    }
+
+    //waits for a running compaction and closes the journals
+    private void closeJournal() {
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.out.println("Error with closing routes journal: " + e.getMessage());
+        }
+        try {
+            accounts.close();
+        } catch (IOException e) {
+            System.out.println("Error with closing accounts journal: " + e.getMessage());
+        }
+        metrics.close();
+        if (METRICS_DUMP_SECONDS > 0) {
+            metrics.dump(new File(METRICS_FILE));
+        }
+    }
+
+    //accounts saver, writes a full snapshot
     private void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(ACCOUNTS_DATA_FILE))) {
-            oos.writeObject(users);
+        try {
+            accounts.writeSnapshot();
         } catch (IOException e) {
             System.out.println("Error with saving accounts data: " + e.getMessage());
         }
     }
 
+    //batch mode, runs a command script without prompts and commits route changes in bulk
+    private void runBatch(String script) {
+        store.deferCommits();
+        CommandSession session = new CommandSession(store, accounts, System.out, BATCH_CHECKPOINT);
+        try (BufferedReader in = new BufferedReader(script.equals("-")
+                ? new InputStreamReader(System.in)
+                : new FileReader(script))) {
+            session.run(in);
+        } catch (IOException e) {
+            System.out.println("Error with running batch script: " + e.getMessage());
+        }
+    }
+
+    //benchmark mode, 10k, 100k and 1M routes unless sizes are given
+    private static void runBenchmark(String[] sizes) {
+        int[] counts = sizes.length == 0
+                ? new int[] {10_000, 100_000, 1_000_000}
+                : Arrays.stream(sizes).mapToInt(Main::parseSize).toArray();
+        if (Arrays.stream(counts).anyMatch(count -> count < 0)) {
+            System.out.println("Usage: --bench [routes...], each a number of routes from 1 to " + Integer.MAX_VALUE);
+            return;
+        }
+        try {
+            File dir = Files.createTempDirectory("busdepot-bench").toFile();
+            new RouteBenchmark(System.out, dir).run(counts);
+            Files.deleteIfExists(dir.toPath());
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Error with running benchmark: " + e.getMessage());
+        }
+    }
+
+    //server mode, dispatchers connect over TCP and each gets a session of its own
+    private void runServer(int port) {
+        RouteServer server;
+        try {
+            server = new RouteServer(store, accounts, port,
+                    SERVER_FILE_DIR.isEmpty() ? null : Paths.get(SERVER_FILE_DIR));
+        } catch (IOException e) {
+            System.out.println("Error with starting server: " + e.getMessage());
+            closeJournal();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                //shutting down anyway
+            }
+            closeJournal();
+        }));
+        System.out.println("Serving bus depot database on localhost:" + server.getPort());
+        server.serve();
+    }
+
     //authorisation menu
     private void authMenu() {
         System.out.println("=== Welcome to the bus depot database ===");
@@ -168,12 +6105,10 @@ public class Main {
             System.out.print("Enter password: ");
             String password = scanner.nextLine();
 
-            Optional<UserAccount> userOpt = users.stream()
-                    .filter(u -> u.getUsername().equals(username) && u.getPassword().equals(password))
-                    .findFirst();
-
-            if (userOpt.isPresent()) {
-                currentUser = userOpt.get();
+            UserAccount account = accounts.authenticate(username, password);
+            if (account != null) {
+                currentUser = account;
+                rehashIfNeeded(account, password);
                 System.out.println("Log in succesful. Hello, " + currentUser.getUsername() + "!");
                 if (currentUser.isAdmin()) {
                     adminMenu();
@@ -187,6 +6122,18 @@ public class Main {
         }
     }
 
+    //rewrites a hash made with another iteration count, the password is only known right after login
+    private void rehashIfNeeded(UserAccount account, String password) {
+        PasswordHasher hasher = accounts.getHasher();
+        if (!hasher.needsRehash(account)) return;
+        currentUser = hasher.create(account.getUsername(), password, account.isAdmin());
+        try {
+            accounts.put(currentUser);
+        } catch (IOException e) {
+            System.out.println("Error with saving accounts data: " + e.getMessage());
+        }
+    }
+
     //user menu
     private void userMenu() {
         while (true) {
@@ -194,6 +6141,8 @@ public class Main {
             System.out.println("1. Search route");
             System.out.println("2. Sort routes");
             System.out.println("3. Show routes, that arrive less than 12 hours before time");
+            System.out.println("4. Advanced search");
+            System.out.println("5. Next departures to a destination");
             System.out.println("0. Log out");
 
             String choice = scanner.nextLine();
@@ -208,8 +6157,15 @@ public class Main {
                 case "3":
                     showRoutesByArrivalTimeLimit();
                     break;
+                case "4":
+                    advancedSearch();
+                    break;
+                case "5":
+                    showNextDepartures();
+                    break;
                 case "0":
                     System.out.println("Logging out...");
+                    flushData();
                     return;
                 default:
                     System.out.println("Incorrect choice. Try again.");
@@ -228,6 +6184,12 @@ public class Main {
             System.out.println("5. Edit route");
             System.out.println("6. Delete rote");
             System.out.println("7. Manage accounts");
+            System.out.println("8. Import timetable from CSV");
+            System.out.println("9. Statistics");
+            System.out.println("10. Advanced search");
+            System.out.println("11. Next departures to a destination");
+            System.out.println("12. Export routes");
+            System.out.println("13. Bulk update routes");
             System.out.println("0. Log out");
 
             String choice = scanner.nextLine();
@@ -254,8 +6216,28 @@ public class Main {
                 case "7":
                     manageAccountsMenu();
                     break;
+                case "8":
+                    importTimetable();
+                    break;
+                case "9":
+                    System.out.println("\n=== Statistics ===");
+                    metrics.report(renderer.writer());
+                    break;
+                case "10":
+                    advancedSearch();
+                    break;
+                case "11":
+                    showNextDepartures();
+                    break;
+                case "12":
+                    exportRoutes();
+                    break;
+                case "13":
+                    bulkUpdate();
+                    break;
                 case "0":
                     System.out.println("Logging out...");
+                    flushData();
                     return;
                 default:
                     System.out.println("Incorrect choice. Try again.");
@@ -272,29 +6254,24 @@ public class Main {
         System.out.println("0. Return");
 
         String choice = scanner.nextLine();
-        List<BusRoute> result = new ArrayList<>();
+        List<BusRoute> result;
 
         switch (choice) {
             case "1":
                 System.out.print("Enter route number: ");
                 String routeNum = scanner.nextLine().trim();
-                result = routes.stream()
-                        .filter(r -> r.getRouteNumber().equalsIgnoreCase(routeNum))
-                        .collect(Collectors.toList());
+                result = store.findByRouteNumber(routeNum);
                 break;
+            //exact matches first, then names starting with the text, then names with a typo or two
             case "2":
-                System.out.print("Enter bus type: ");
+                System.out.print("Enter bus type or its beginning: ");
                 String type = scanner.nextLine().trim();
-                result = routes.stream()
-                        .filter(r -> r.getBusType().equalsIgnoreCase(type))
-                        .collect(Collectors.toList());
+                result = store.matchBusType(type);
                 break;
             case "3":
-                System.out.print("Enter destination point: ");
+                System.out.print("Enter destination point or its beginning: ");
                 String dest = scanner.nextLine().trim();
-                result = routes.stream()
-                        .filter(r -> r.getDestination().equalsIgnoreCase(dest))
-                        .collect(Collectors.toList());
+                result = store.matchDestination(dest);
                 break;
             case "0":
                 return;
@@ -307,7 +6284,109 @@ public class Main {
             System.out.println("No results.");
         } else {
             System.out.println("Results:");
-            result.forEach(System.out::println);
+            printRoutes(result);
+        }
+    }
+
+    //search by several fields at once, every field left blank matches all routes
+    private void advancedSearch() {
+        System.out.println("\n=== Advanced search ===");
+        RouteQuery query = readQuery();
+
+        List<BusRoute> result = store.query(query);
+        if (result.isEmpty()) {
+            System.out.println("No results for " + query + ".");
+        } else {
+            System.out.println("Results for " + query + ":");
+            printRoutes(result);
+        }
+    }
+
+    //conditions of a search, every field left blank matches all routes
+    private RouteQuery readQuery() {
+        RouteQuery query = RouteQuery.ALL;
+
+        System.out.print("Route number (leave blank to skip): ");
+        String routeNumber = scanner.nextLine().trim();
+        if (!routeNumber.isEmpty()) query = query.withRouteNumber(routeNumber);
+
+        System.out.print("Bus type (leave blank to skip): ");
+        String busType = scanner.nextLine().trim();
+        if (!busType.isEmpty()) query = query.withBusType(busType);
+
+        System.out.print("Destination point (leave blank to skip): ");
+        String destination = scanner.nextLine().trim();
+        if (!destination.isEmpty()) query = query.withDestination(destination);
+
+        LocalTime departureFrom = readTimeOrSkip("Departure from (HH:mm) (leave blank to skip): ");
+        if (departureFrom != null) {
+            LocalTime departureTo = readTimeOrSkip("Departure to (HH:mm) (leave blank for the same time): ");
+            query = query.withDeparture(departureFrom, departureTo != null ? departureTo : departureFrom);
+        }
+
+        LocalTime arrivalFrom = readTimeOrSkip("Arrival from (HH:mm) (leave blank to skip): ");
+        if (arrivalFrom != null) {
+            LocalTime arrivalTo = readTimeOrSkip("Arrival to (HH:mm) (leave blank for the same time): ");
+            query = query.withArrival(arrivalFrom, arrivalTo != null ? arrivalTo : arrivalFrom);
+        }
+        return query;
+    }
+
+    //one change made to many routes at once, e.g. every Express to Minsk leaving 15 minutes later
+    private void bulkUpdate() {
+        System.out.println("\n=== Bulk update ===");
+        System.out.println("Choose the routes to change:");
+        RouteQuery query = readQuery();
+
+        System.out.println("Enter the changes:");
+        RouteUpdate update = RouteUpdate.NONE;
+        System.out.print("New bus type (leave blank to keep): ");
+        String busType = scanner.nextLine().trim();
+        if (!busType.isEmpty()) update = update.withBusType(busType);
+
+        System.out.print("New destination point (leave blank to keep): ");
+        String destination = scanner.nextLine().trim();
+        if (!destination.isEmpty()) update = update.withDestination(destination);
+
+        try {
+            System.out.print("New departure time (HH:mm, or +/- minutes to shift it) (leave blank to keep): ");
+            String departure = scanner.nextLine().trim();
+            if (CommandSession.isShift(departure)) {
+                update = update.shiftDeparture(CommandSession.parseShift(departure));
+            } else if (!departure.isEmpty()) {
+                update = update.withDeparture(LocalTime.parse(departure, RouteRenderer.TIME_FORMAT));
+            }
+
+            System.out.print("New arrival time (HH:mm, or +/- minutes to shift it) (leave blank to keep): ");
+            String arrival = scanner.nextLine().trim();
+            if (CommandSession.isShift(arrival)) {
+                update = update.shiftArrival(CommandSession.parseShift(arrival));
+            } else if (!arrival.isEmpty()) {
+                update = update.withArrival(LocalTime.parse(arrival, RouteRenderer.TIME_FORMAT));
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            System.out.println("Invalid time format.");
+            return;
+        }
+        if (update.isEmpty()) {
+            System.out.println("No changes entered.");
+            return;
+        }
+
+        int matching = store.query(query).size();
+        if (matching == 0) {
+            System.out.println("No routes for " + query + ".");
+            return;
+        }
+        System.out.print("Apply " + update + " to " + matching + " routes (" + query + ")? (y/n): ");
+        if (!scanner.nextLine().trim().toLowerCase().equals("y")) {
+            System.out.println("Bulk update was canceled.");
+            return;
+        }
+        try {
+            System.out.println(store.updateAll(query, update).summary());
+        } catch (IOException e) {
+            System.out.println("Error with saving routes data: " + e.getMessage());
         }
     }
 
@@ -321,17 +6400,17 @@ public class Main {
 
         String choice = scanner.nextLine();
 
-        Comparator<BusRoute> comparator;
+        List<BusRoute> sorted;
 
         switch (choice) {
             case "1":
-                comparator = Comparator.comparing(BusRoute::getRouteNumber);
+                sorted = store.sortedByRouteNumber();
                 break;
             case "2":
-                comparator = Comparator.comparing(BusRoute::getBusType);
+                sorted = store.sortedByBusType();
                 break;
             case "3":
-                comparator = Comparator.comparing(BusRoute::getDestination);
+                sorted = store.sortedByDestination();
                 break;
             case "0":
                 return;
@@ -340,17 +6419,15 @@ public class Main {
                 return;
         }
 
-        List<BusRoute> sorted = new ArrayList<>(routes);
-        sorted.sort(comparator);
         System.out.println("Sorted routes:");
-        sorted.forEach(System.out::println);
+        printRoutes(sorted);
     }
 
     //show routes, that arrive less than 12 hours before  user defined time
     private void showRoutesByArrivalTimeLimit() {
         System.out.print("Enter time (HH:mm type): ");
         String input = scanner.nextLine();
-        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("HH:mm");
+        DateTimeFormatter fmt = RouteRenderer.TIME_FORMAT;
 
         LocalTime userTime;
         try {
@@ -360,17 +6437,88 @@ public class Main {
             return;
         }
 
-        LocalTime limitTime = userTime.minusHours(12);
-
-        List<BusRoute> filtered = routes.stream()
-                .filter(r -> !r.getArrivalTime().isAfter(limitTime))
-                .collect(Collectors.toList());
+        //window of the 12 hours before userTime, wraps past midnight for times before 12:00
+        List<BusRoute> filtered = store.findArrivingBefore(userTime, 12);
 
         if (filtered.isEmpty()) {
             System.out.println("There is no routes, arriving less than 12 hours before " + userTime.format(fmt));
         } else {
             System.out.println("Results:");
-            filtered.forEach(System.out::println);
+            printRoutes(filtered);
+        }
+    }
+
+    //next buses to a destination after a user defined time, the day wraps past midnight
+    private void showNextDepartures() {
+        System.out.print("Enter destination point: ");
+        String destination = scanner.nextLine().trim();
+        LocalTime time = readTime("Enter time (HH:mm type): ");
+        if (time == null) return;
+
+        System.out.print("How many departures (leave blank for " + RouteStore.NEXT_DEPARTURES + "): ");
+        String input = scanner.nextLine().trim();
+        int count = RouteStore.NEXT_DEPARTURES;
+        if (!input.isEmpty()) {
+            try {
+                count = Integer.parseInt(input);
+            } catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count <= 0) {
+                System.out.println("Incorrect number.");
+                return;
+            }
+        }
+
+        List<BusRoute> next = store.nextDepartures(destination, time, count);
+        if (next.isEmpty()) {
+            System.out.println("There is no routes to " + destination);
+        } else {
+            System.out.println("Next departures to " + destination + " from " + time.format(RouteRenderer.TIME_FORMAT) + ":");
+            printRoutes(next);
+        }
+    }
+
+    //shows rows a page at a time, rows on pages nobody opens are never formatted
+    private void printRoutes(List<BusRoute> rows) {
+        int page = 0;
+        while (true) {
+            int pages = (rows.size() + pageSize - 1) / pageSize;
+            int from = page * pageSize;
+            renderer.print(rows, from, Math.min(rows.size(), from + pageSize));
+            if (pages <= 1) return;
+
+            System.out.print("Page " + (page + 1) + "/" + pages + ". n - next, p - previous, s - page size, 0 - return: ");
+            String choice = scanner.nextLine().trim().toLowerCase();
+            switch (choice) {
+                case "n":
+                    if (page < pages - 1) page++;
+                    else System.out.println("This is the last page.");
+                    break;
+                case "p":
+                    if (page > 0) page--;
+                    else System.out.println("This is the first page.");
+                    break;
+                case "s":
+                    System.out.print("Enter page size: ");
+                    try {
+                        int size = Integer.parseInt(scanner.nextLine().trim());
+                        if (size > 0) {
+                            //stay on the page that holds the first row shown so far
+                            pageSize = size;
+                            page = from / pageSize;
+                            break;
+                        }
+                    } catch (NumberFormatException e) {
+                        //reported below
+                    }
+                    System.out.println("Page size must be a positive number.");
+                    break;
+                case "0":
+                    return;
+                default:
+                    System.out.println("Incorrect choice.");
+            }
         }
     }
 
@@ -392,8 +6540,12 @@ public class Main {
         LocalTime arrivalTime = readTime("Enter arrival time (HH:mm): ");
         if (arrivalTime == null) return;
 
-        routes.add(new BusRoute(routeNumber, busType, destination, departureTime, arrivalTime));
-        saveRoutes();
+        try {
+            store.add(routeNumber, busType, destination, departureTime, arrivalTime);
+        } catch (IOException e) {
+            System.out.println("Error with saving routes data: " + e.getMessage());
+            return;
+        }
         System.out.println("Route created succesfully.");
     }
 
@@ -403,39 +6555,36 @@ public class Main {
         System.out.print("Enter route number to edit: ");
         String routeNumber = scanner.nextLine().trim();
 
-        Optional<BusRoute> optRoute = routes.stream()
-                .filter(r -> r.getRouteNumber().equals(routeNumber))
-                .findFirst();
+        BusRoute route = store.find(routeNumber);
 
-        if (!optRoute.isPresent()) {
+        if (route == null) {
             System.out.println("Route №" + routeNumber + " is not founded.");
             return;
         }
 
-        BusRoute route = optRoute.get();
-
         System.out.println("Old route data: ");
         System.out.println(route);
 
         System.out.print("Enter new bus type (leave blank to skip): ");
         String busType = scanner.nextLine().trim();
-        if (!busType.isEmpty())
-            route.setBusType(busType);
 
         System.out.print("Enter new destination point (leave blank to skip): ");
         String destination = scanner.nextLine().trim();
-        if (!destination.isEmpty())
-            route.setDestination(destination);
 
         LocalTime departureTime = readTimeOrSkip("Enter new departure time (HH:mm) (leave blank to skip): ");
-        if (departureTime != null)
-            route.setDepartureTime(departureTime);
 
         LocalTime arrivalTime = readTimeOrSkip("Enter new arrival time (HH:mm) (leave blank to skip): ");
-        if (arrivalTime != null)
-            route.setArrivalTime(arrivalTime);
 
-        saveRoutes();
+        try {
+            if (store.update(route, busType.isEmpty() ? null : busType, destination.isEmpty() ? null : destination,
+                    departureTime, arrivalTime) == null) {
+                System.out.println("Route №" + routeNumber + " was changed or deleted while you were editing it.");
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("Error with saving routes data: " + e.getMessage());
+            return;
+        }
         System.out.println("Route updated succesfully.");
     }
 
@@ -445,37 +6594,86 @@ public class Main {
         System.out.print("Enter route number to delete: ");
         String routeNumber = scanner.nextLine().trim();
 
-        Iterator<BusRoute> it = routes.iterator();
+        BusRoute r = store.find(routeNumber);
+
         boolean deleted = false;
-        while (it.hasNext()) {
-            BusRoute r = it.next();
-            if (r.getRouteNumber().equals(routeNumber)) {
-                System.out.println("Old route data: ");
-                System.out.println(r);
-                System.out.print("Are you sure you want to delete this route? (y/n): ");
-                String delConfirmStr = scanner.nextLine().trim().toLowerCase();
-                boolean delConfirm = delConfirmStr.equals("y");
-                if (delConfirm){
-                    it.remove();
-                    deleted = true;
+        if (r != null) {
+            System.out.println("Old route data: ");
+            System.out.println(r);
+            System.out.print("Are you sure you want to delete this route? (y/n): ");
+            String delConfirmStr = scanner.nextLine().trim().toLowerCase();
+            boolean delConfirm = delConfirmStr.equals("y");
+            if (delConfirm){
+                try {
+                    deleted = store.delete(r);
+                } catch (IOException e) {
+                    System.out.println("Error with saving routes data: " + e.getMessage());
+                    return;
                 }
-                break;
             }
         }
 
         if (deleted) {
-            saveRoutes();
             System.out.println("Route deleted succesfully.");
         } else {
             System.out.println("Error: route with this number is not founded or deletion was canceled.");
         }
     }
 
+    //bulk import of a CSV timetable: route number, bus type, destination, departure, arrival
+    private void importTimetable() {
+        System.out.println("\n=== Timetable import ===");
+        System.out.print("Enter CSV file path: ");
+        String path = scanner.nextLine().trim();
+
+        try (BufferedReader in = new BufferedReader(new FileReader(path), 1 << 16)) {
+            TimetableImporter.Result result = new TimetableImporter().run(in, store);
+            for (String error : result.errors) {
+                System.out.println("  " + error);
+            }
+            System.out.println(result.summary());
+        } catch (IOException e) {
+            System.out.println("Error with importing timetable: " + e.getMessage());
+        }
+    }
+
+    //route table as CSV or JSON for passenger information systems, all of it or what changed since a version
+    private void exportRoutes() {
+        System.out.println("\n=== Route export ===");
+        System.out.print("Format (csv/json): ");
+        String formatName = scanner.nextLine().trim();
+        System.out.print("Enter file path: ");
+        String path = scanner.nextLine().trim();
+        System.out.print("Only changes since version (leave blank to export all routes): ");
+        String since = scanner.nextLine().trim();
+        long version = -1;
+        if (!since.isEmpty()) {
+            try {
+                version = Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                version = -1;
+            }
+            if (version < 0) {
+                System.out.println("Invalid version.");
+                return;
+            }
+        }
+
+        try {
+            RouteExporter.Format format = RouteExporter.Format.of(formatName);
+            System.out.println(store.export(new File(path), format, version).summary());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Error with exporting routes: " + e.getMessage());
+        }
+    }
+
     //time reader
     private LocalTime readTime(String prompt) {
         System.out.print(prompt);
         String input = scanner.nextLine();
-        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("HH:mm");
+        DateTimeFormatter fmt = RouteRenderer.TIME_FORMAT;
         try {
             return LocalTime.parse(input, fmt);
         } catch (Exception e) {
@@ -491,7 +6689,7 @@ public class Main {
         if (input.trim().isEmpty()) {
             return null;
         }
-        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("HH:mm");
+        DateTimeFormatter fmt = RouteRenderer.TIME_FORMAT;
         try {
             return LocalTime.parse(input, fmt);
         } catch (Exception e) {
@@ -539,7 +6737,7 @@ public class Main {
         System.out.print("Enter username: ");
         String username = scanner.nextLine().trim();
 
-        if (users.stream().anyMatch(u -> u.getUsername().equals(username))) {
+        if (accounts.get(username) != null) {
             System.out.println("User with this username already exists.");
             return;
         }
@@ -551,8 +6749,15 @@ public class Main {
         String isAdminStr = scanner.nextLine().trim().toLowerCase();
         boolean isAdmin = isAdminStr.equals("y");
 
-        users.add(new UserAccount(username, password, isAdmin));
-        saveUsers();
+        try {
+            if (!accounts.add(accounts.getHasher().create(username, password, isAdmin))) {
+                System.out.println("User with this username already exists.");
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("Error with saving accounts data: " + e.getMessage());
+            return;
+        }
         System.out.println("User added succesfully.");
     }
 
@@ -562,36 +6767,34 @@ public class Main {
         System.out.print("Edit username of user to edit: ");
         String username = scanner.nextLine().trim();
 
-        Optional<UserAccount> optUser = users.stream()
-                .filter(u -> u.getUsername().equals(username))
-                .findFirst();
+        UserAccount user = accounts.get(username);
 
-        if (!optUser.isPresent()) {
+        if (user == null) {
             System.out.println("User is not founded.");
             return;
         }
 
-        UserAccount user = optUser.get();
-
         System.out.print("Enter new password (leave blank to skip): ");
         String password = scanner.nextLine().trim();
         if (!password.isEmpty())
-            user = new UserAccount(user.getUsername(), password, user.isAdmin());
+            user = accounts.getHasher().create(user.getUsername(), password, user.isAdmin());
 
         System.out.print("New admin rights (y/n/skip): ");
         String adminStr = scanner.nextLine().trim().toLowerCase();
 
         if (adminStr.equals("y")) {
-            user = new UserAccount(user.getUsername(), user.getPassword(), true);
+            user = user.withAdmin(true);
         } else if (adminStr.equals("n")) {
-            user = new UserAccount(user.getUsername(), user.getPassword(), false);
+            user = user.withAdmin(false);
         }
 
-        //deleting old and adding updated user data
-        users.removeIf(u -> u.getUsername().equals(username));
-        users.add(user);
-
-        saveUsers();
+        //replacing the account under the same username
+        try {
+            accounts.put(user);
+        } catch (IOException e) {
+            System.out.println("Error with saving accounts data: " + e.getMessage());
+            return;
+        }
         System.out.println("Account updated succesfully.");
     }
 
@@ -606,24 +6809,23 @@ public class Main {
             return;
         }
 
-        Iterator<UserAccount> it = users.iterator();
+        UserAccount u = accounts.get(username);
         boolean deleted = false;
-        while (it.hasNext()) {
-            UserAccount u = it.next();
-            if (u.getUsername().equals(username)) {
-                System.out.print("Are you sure you want to delete " + u.getUsername() + "? (y/n): ");
-                String delConfirmStr = scanner.nextLine().trim().toLowerCase();
-                boolean delConfirm = delConfirmStr.equals("y");
-                if (delConfirm){
-                    it.remove();
-                    deleted = true;
+        if (u != null) {
+            System.out.print("Are you sure you want to delete " + u.getUsername() + "? (y/n): ");
+            String delConfirmStr = scanner.nextLine().trim().toLowerCase();
+            boolean delConfirm = delConfirmStr.equals("y");
+            if (delConfirm){
+                try {
+                    deleted = accounts.remove(username);
+                } catch (IOException e) {
+                    System.out.println("Error with saving accounts data: " + e.getMessage());
+                    return;
                 }
-                break;
             }
         }
 
         if (deleted) {
-            saveUsers();
             System.out.println("User deleted succesfully.");
         } else {
             System.out.println("Error: user is not founded or deletion was canceled.");
@@ -633,7 +6835,7 @@ public class Main {
     //show all users
     private void listUsers() {
         System.out.println("\nUser list:");
-        for (UserAccount u : users) {
+        for (UserAccount u : accounts.list()) {
             System.out.printf("%s (Admin: %s)%n", u.getUsername(), u.isAdmin() ? "Yes" : "No");
         }
     }